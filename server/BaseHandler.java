@@ -0,0 +1,249 @@
+package com.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Request body reading and response writing shared by the handlers.
+ * Bodies are read as bytes into pooled buffers and JSON is parsed from the bytes, without
+ * decoding the body into lines and joining them back together. Bodies larger than
+ * -Dhttp.body.max bytes (default 1 MB) are refused.
+ */
+public abstract class BaseHandler implements HttpHandler {
+
+    private static final int maxBodySize = ServerConfig.getInt("http.body.max", 1024 * 1024);
+
+    protected final BufferPool bufferPool = BufferPool.getInstance();
+
+    /**
+     * Thrown when a request body is larger than -Dhttp.body.max.
+     */
+    public static class RequestTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestTooLargeException(long maxBodySize) {
+            super("Request body larger than " + maxBodySize + " bytes");
+        }
+    }
+
+    /**
+     * A request body read into memory. Closing it gives its buffer back to the pool.
+     */
+    public final class RequestBody implements Closeable {
+        private byte[] bytes;
+        private final int length;
+        private final boolean pooled;
+
+        RequestBody(byte[] bytes, int length, boolean pooled) {
+            this.bytes = bytes;
+            this.length = length;
+            this.pooled = pooled;
+        }
+
+        public boolean isEmpty() {
+            return length == 0;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns a stream over the body, e.g. for a streaming parser.
+         *
+         * @return the body as an input stream
+         */
+        public InputStream stream() {
+            return new ByteArrayInputStream(bytes, 0, length);
+        }
+
+        /**
+         * Parses the body as a JSON object. The bytes are decoded to a String first, since a
+         * tokener over a stream allocates about 24 KB of reader buffers, many times the size
+         * of a usual body.
+         *
+         * @return the parsed object
+         * @throws JSONException if the body is not a JSON object
+         */
+        public JSONObject toJson() throws JSONException {
+            return new JSONObject(new JSONTokener(new String(bytes, 0, length, StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public void close() {
+            if (pooled && bytes != null) {
+                bufferPool.release(bytes);
+            }
+            bytes = null;
+        }
+    }
+
+    /**
+     * Reads the request body from the HttpExchange object. If the client sent a Content-Length
+     * the body is read in one go into a buffer of the right size, otherwise the buffer grows
+     * as the body arrives.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @return the request body, to be closed when it is no longer needed.
+     * @throws RequestTooLargeException if the body is larger than -Dhttp.body.max bytes.
+     * @throws IOException if an I/O error occurs while reading the request body.
+     */
+    protected RequestBody readRequestBody(HttpExchange exchange) throws IOException {
+        long contentLength = contentLength(exchange);
+        if (contentLength > maxBodySize) {
+            throw new RequestTooLargeException(maxBodySize);
+        }
+
+        byte[] buffer;
+        boolean pooled;
+        if (contentLength > bufferPool.getBufferSize()) {
+            buffer = new byte[(int) contentLength];
+            pooled = false;
+        } else {
+            buffer = bufferPool.acquire();
+            pooled = true;
+        }
+
+        try (InputStream stream = exchange.getRequestBody()) {
+            if (contentLength >= 0) {
+                int length = stream.readNBytes(buffer, 0, (int) contentLength);
+                return new RequestBody(buffer, length, pooled);
+            }
+
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    // One byte over the limit is enough to tell that the body is too large.
+                    byte[] grown = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2, maxBodySize + 1L));
+                    if (pooled) {
+                        bufferPool.release(buffer);
+                        pooled = false;
+                    }
+                    buffer = grown;
+                }
+                int read = stream.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+                if (length > maxBodySize) {
+                    throw new RequestTooLargeException(maxBodySize);
+                }
+            }
+            return new RequestBody(buffer, length, pooled);
+        } catch (IOException e) {
+            if (pooled) {
+                bufferPool.release(buffer);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a response to the client with the given status code and response body.
+     * Short responses are encoded into a pooled buffer instead of a new byte array.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @param statusCode the status code to send in the response.
+     * @param response the response body to send in the response.
+     * @throws IOException if an I/O error occurs while sending the response.
+     */
+    protected void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+        int length = response.length();
+        if (length > bufferPool.getBufferSize() || ResponseCompression.isWorthCompressing(length)) {
+            sendResponse(exchange, statusCode, response.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        byte[] buffer = bufferPool.acquire();
+        try {
+            for (int i = 0; i < length; i++) {
+                char c = response.charAt(i);
+                if (c >= 0x80) {
+                    sendResponse(exchange, statusCode, response.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                buffer[i] = (byte) c;
+            }
+            sendEncodedResponse(exchange, statusCode, buffer, length);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Sends a response to the client with the given status code and encoded response body,
+     * compressed if it is long enough and the client accepts it.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @param statusCode the status code to send in the response.
+     * @param bytes the encoded response body to send in the response.
+     * @throws IOException if an I/O error occurs while sending the response.
+     */
+    protected void sendResponse(HttpExchange exchange, int statusCode, byte[] bytes) throws IOException {
+        byte[] encoded = ResponseCompression.encode(exchange, bytes);
+        sendEncodedResponse(exchange, statusCode, encoded, encoded.length);
+    }
+
+    /**
+     * Sends a response body that is already in the coding set in the response headers.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @param statusCode the status code to send in the response.
+     * @param bytes the buffer holding the response body as sent on the wire.
+     * @param length the number of bytes of the buffer to send.
+     * @throws IOException if an I/O error occurs while sending the response.
+     */
+    protected void sendEncodedResponse(HttpExchange exchange, int statusCode, byte[] bytes, int length)
+            throws IOException {
+        exchange.sendResponseHeaders(statusCode, length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(bytes, 0, length);
+        outputStream.close();
+    }
+
+    /**
+     * Sends a response to the client with the given status code and response length.
+     * Overloaded method to send response without a response body.
+     * A 304 response is finished by sending its headers and has no body stream to close.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @param statusCode the status code to send in the response.
+     * @param length the response length to send in the response.
+     * @throws IOException if an I/O error occurs while sending the response.
+     */
+    protected void sendResponse(HttpExchange exchange, int statusCode, int length) throws IOException {
+        exchange.sendResponseHeaders(statusCode, length);
+        if (statusCode != 304) {
+            exchange.getResponseBody().close();
+        }
+    }
+
+    private static long contentLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Concurrent Bloom filter of strings, used to tell that a username is certainly not taken
+ * without asking the database. A string that was added is always reported as possibly
+ * present; a string that was not is reported as absent except for a false positive rate of
+ * about the one the filter was sized for, as long as no more strings than its capacity are
+ * added. Strings cannot be removed. Adding and checking are lock-free: bits are only ever set,
+ * with a compare-and-set on the word holding them.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+    private final long capacity;
+
+    private final LongAdder added = new LongAdder();
+    private final LongAdder absent = new LongAdder();
+    private final LongAdder maybePresent = new LongAdder();
+
+    /**
+     * Creates a filter sized for a number of strings and a false positive rate.
+     *
+     * @param capacity the number of strings the filter is sized for
+     * @param falsePositiveRate the false positive rate at capacity, e.g. 0.01
+     */
+    public BloomFilter(long capacity, double falsePositiveRate) {
+        this.capacity = Math.max(1, capacity);
+        double rate = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+        long optimalBits = (long) Math.ceil(-this.capacity * Math.log(rate) / (Math.log(2) * Math.log(2)));
+        int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (Math.max(64, optimalBits) + 63) / 64);
+        this.words = new AtomicLongArray(wordCount);
+        this.bits = (long) wordCount * 64;
+        this.hashes = Math.max(1, (int) Math.round((double) bits / this.capacity * Math.log(2)));
+    }
+
+    /**
+     * Adds a string to the filter.
+     *
+     * @param value the string to add
+     */
+    public void add(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(h1 + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = words.get(word);
+            while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+                current = words.get(word);
+            }
+        }
+        added.increment();
+    }
+
+    /**
+     * Checks if a string may have been added to the filter.
+     *
+     * @param value the string to check
+     * @return false if the string was certainly never added, true if it may have been
+     */
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(h1 + i * h2);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                absent.increment();
+                return false;
+            }
+        }
+        maybePresent.increment();
+        return true;
+    }
+
+    /**
+     * Returns the size of the filter and how its checks were answered.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("bits", bits);
+        metrics.put("hashes", hashes);
+        metrics.put("capacity", capacity);
+        metrics.put("added", added.sum());
+        metrics.put("absent", absent.sum());
+        metrics.put("maybePresent", maybePresent.sum());
+        return metrics;
+    }
+
+    private long index(int combinedHash) {
+        return Math.floorMod((long) combinedHash, bits);
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters of the string, finished with the murmur3 mix so that
+     * both halves can be used as independent hashes.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,82 @@
+package com.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Bounded pool of fixed size byte buffers for request and response bodies. A buffer is
+ * taken for the duration of one request and given back afterwards, so a busy server reuses
+ * the same few buffers instead of allocating new arrays for every request. The pool does not
+ * depend on the thread, so it works the same with virtual threads.
+ */
+public class BufferPool {
+
+    private static BufferPool instance = null;
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder created = new LongAdder();
+
+    public static synchronized BufferPool getInstance() {
+        if (null == instance) {
+            instance = new BufferPool(ServerConfig.getInt("http.buffer.size", 16 * 1024),
+                    ServerConfig.getInt("http.buffer.pool", Runtime.getRuntime().availableProcessors() * 4));
+            Metrics.register("bufferPool", instance::metrics);
+        }
+        return instance;
+    }
+
+    public BufferPool(int bufferSize, int poolSize) {
+        this.bufferSize = Math.max(256, bufferSize);
+        this.buffers = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * Takes a buffer from the pool, or creates one if the pool is empty.
+     *
+     * @return a buffer of getBufferSize() bytes that should be given back with release()
+     */
+    public byte[] acquire() {
+        acquired.increment();
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            created.increment();
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers of another size and buffers that do not fit
+     * in the pool are left to the garbage collector.
+     *
+     * @param buffer the buffer to give back
+     */
+    public void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the pool counters.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("bufferSize", bufferSize);
+        metrics.put("idle", buffers.size());
+        metrics.put("acquired", acquired.sum());
+        metrics.put("created", created.sum());
+        return metrics;
+    }
+}
@@ -0,0 +1,227 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Base of the bulk import endpoints. The body is a JSON array of objects or NDJSON and is
+ * read item by item while it arrives; every item is validated as soon as it is read and the
+ * valid ones are stored -Dbulk.chunk (default 500) at a time, each chunk in one transaction.
+ * The response is streamed back as the chunks are stored:
+ * {"results":[{"index":0,"status":200,"id":1},{"index":1,"status":400,"error":"..."}],
+ * "accepted":1,"rejected":1}. A body whose framing breaks part way through ends the results
+ * there and adds an "error" member; the items before it have been stored. The same happens
+ * after the most items a handler takes in one request.
+ *
+ * @param <T> the type of the items
+ */
+public abstract class BulkHandler<T> extends BaseHandler {
+
+    private static final int chunkSize = Math.max(1, ServerConfig.getInt("bulk.chunk", 500));
+    private static final int maxItemSize = ServerConfig.getInt("http.body.max", 1024 * 1024);
+
+    private final int maxItems;
+
+    /**
+     * One item of a bulk request and its result.
+     *
+     * @param <T> the type of the item
+     */
+    protected static final class Item<T> {
+        final int index;
+        T value;
+        int status = 200;
+        String error;
+        long id;
+
+        Item(int index) {
+            this.index = index;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public void fail(int status, String error) {
+            this.status = status;
+            this.error = error;
+        }
+
+        public void setId(long id) {
+            this.id = id;
+        }
+    }
+
+    protected BulkHandler() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a handler that takes at most maxItems items in one request.
+     *
+     * @param maxItems the most items of a request
+     */
+    protected BulkHandler(int maxItems) {
+        this.maxItems = Math.max(1, maxItems);
+    }
+
+    /**
+     * Parses and validates one item.
+     *
+     * @param bytes the buffer holding the UTF-8 item
+     * @param length the length of the item
+     * @return the valid item
+     * @throws JSONException if the item is not valid JSON or does not fit the schema
+     * @throws IllegalArgumentException if a field is missing or has an invalid value
+     */
+    protected abstract T parse(byte[] bytes, int length);
+
+    /**
+     * Stores a chunk of valid items in one transaction and fails the items that could not be stored.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @param items the items to store
+     * @throws SQLException if the transaction fails
+     */
+    protected abstract void store(HttpExchange exchange, List<Item<T>> items) throws SQLException;
+
+    /**
+     * Handles the HTTP request by checking the method and content type and importing the body.
+     *
+     * @param exchange the HttpExchange object representing the HTTP request and response
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType == null || !(contentType.equalsIgnoreCase("application/json")
+                    || contentType.equalsIgnoreCase("application/x-ndjson"))) {
+                sendResponse(exchange, 415, "Unsupported content type");
+                return;
+            }
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                sendResponse(exchange, 400, "Not supported");
+                return;
+            }
+            handlePostRequest(exchange);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handlePostRequest(HttpExchange exchange) throws IOException {
+        byte[] buffer = bufferPool.acquire();
+        JsonStreamWriter json = null;
+        try (InputStream body = exchange.getRequestBody()) {
+            BulkReader reader = new BulkReader(body, buffer, maxItemSize);
+            int length;
+            try {
+                length = reader.next();
+            } catch (JSONException e) {
+                sendResponse(exchange, 400, "Invalid JSON! " + e.getMessage());
+                return;
+            }
+            if (length < 0) {
+                sendResponse(exchange, 400, "POST Empty");
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            ChunkedResponseStream response = new ChunkedResponseStream(exchange, 200);
+            ResponseCompression.Encoding encoding = ResponseCompression.negotiate(exchange.getRequestHeaders());
+            ResponseCompression.setHeaders(exchange, encoding);
+            json = new JsonStreamWriter(ResponseCompression.compressingStream(response, encoding));
+            json.beginObject().name("results").beginArray();
+
+            List<Item<T>> chunk = new ArrayList<>(chunkSize);
+            List<Item<T>> valid = new ArrayList<>(chunkSize);
+            long[] counts = new long[2];
+            String failure = null;
+            int index = 0;
+            try {
+                while (length >= 0) {
+                    if (index == maxItems) {
+                        failure = "At most " + maxItems + " items in one request";
+                        break;
+                    }
+                    Item<T> item = new Item<>(index++);
+                    try {
+                        item.value = parse(reader.item(), length);
+                        valid.add(item);
+                    } catch (JSONException | IllegalArgumentException e) {
+                        item.fail(400, e.getMessage());
+                    }
+                    chunk.add(item);
+                    if (chunk.size() == chunkSize) {
+                        storeChunk(exchange, chunk, valid, json, counts);
+                    }
+                    length = reader.next();
+                }
+            } catch (JSONException e) {
+                failure = "Invalid JSON! " + e.getMessage();
+            }
+            storeChunk(exchange, chunk, valid, json, counts);
+
+            json.endArray();
+            json.field("accepted", counts[0]);
+            json.field("rejected", counts[1]);
+            if (failure != null) {
+                json.field("error", failure);
+            }
+            json.endObject();
+            json.close();
+        } finally {
+            if (json != null) {
+                json.discard();
+            }
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Stores the valid items of a chunk and writes the results of all of its items in order.
+     */
+    private void storeChunk(HttpExchange exchange, List<Item<T>> chunk, List<Item<T>> valid, JsonStreamWriter json,
+            long[] counts) throws IOException {
+        if (!valid.isEmpty()) {
+            try {
+                store(exchange, valid);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                for (Item<T> item : valid) {
+                    item.fail(500, "Database error");
+                }
+            } catch (RejectedExecutionException e) {
+                for (Item<T> item : valid) {
+                    item.fail(503, "Server busy, try again later");
+                }
+            }
+        }
+
+        for (Item<T> item : chunk) {
+            json.beginObject();
+            json.field("index", item.index);
+            json.field("status", item.status);
+            if (item.error != null) {
+                json.field("error", item.error);
+                counts[1]++;
+            } else {
+                if (item.id != 0) {
+                    json.field("id", item.id);
+                }
+                counts[0]++;
+            }
+            json.endObject();
+        }
+        chunk.clear();
+        valid.clear();
+    }
+}
@@ -0,0 +1,55 @@
+package com.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * POST /info/bulk: imports many new locations in one request, posted by the authenticated user.
+ * Each item is a new location as sent to /info; updates and visits are not accepted here.
+ * The result of a stored location carries its locationID as id.
+ */
+public class BulkMessageHandler extends BulkHandler<BulkMessageHandler.Import> {
+
+    /**
+     * A location to import with its posting time already parsed to epoch milliseconds.
+     */
+    record Import(Location location, long originalPostingTime) {
+    }
+
+    private final UserMessage userMessage = new UserMessage();
+
+    @Override
+    protected Import parse(byte[] bytes, int length) {
+        LocationCommand command = LocationParser.parse(bytes, length);
+        if (!(command instanceof Location location)) {
+            throw new IllegalArgumentException("Only new locations can be imported");
+        }
+        if (!UserMessage.isComplete(location)) {
+            throw new IllegalArgumentException("Missing or empty location fields");
+        }
+        long originalPostingTime = TimeTools.parseEpoch(location.originalPostingTime());
+        if (originalPostingTime == TimeTools.INVALID_TIME) {
+            throw new IllegalArgumentException("Invalid originalPostingTime");
+        }
+        return new Import(location, originalPostingTime);
+    }
+
+    @Override
+    protected void store(HttpExchange exchange, List<Item<Import>> items) throws SQLException {
+        List<Location> locations = new ArrayList<>(items.size());
+        long[] originalPostingTimes = new long[items.size()];
+        for (int i = 0; i < originalPostingTimes.length; i++) {
+            Import item = items.get(i).getValue();
+            locations.add(item.location());
+            originalPostingTimes[i] = item.originalPostingTime();
+        }
+        UserPrincipal user = (UserPrincipal) exchange.getPrincipal();
+        int[] locationIDs = userMessage.addMessages(locations, originalPostingTimes, user.getNickname());
+        for (int i = 0; i < locationIDs.length; i++) {
+            items.get(i).setId(locationIDs[i]);
+        }
+    }
+}
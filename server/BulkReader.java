@@ -0,0 +1,176 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.json.JSONException;
+
+/**
+ * Splits the body of a bulk POST into its items while it is being received. The body is
+ * either a JSON array of objects or NDJSON, objects separated by newlines. Only the framing
+ * is checked here: strings and nesting are followed to find where each object ends, and the
+ * bytes of the object are handed to the caller to parse. An item larger than the
+ * item limit fails the read, since the framing cannot be trusted after it.
+ */
+public class BulkReader {
+
+    private final InputStream in;
+    private final int maxItemSize;
+    private final byte[] input;
+    private int inputPosition = 0;
+    private int inputLength = 0;
+
+    private byte[] item;
+    private int itemLength = 0;
+    private long offset = 0;
+    private boolean array = false;
+    private boolean started = false;
+    private boolean finished = false;
+
+    /**
+     * Creates a reader over a request body.
+     *
+     * @param in the request body
+     * @param buffer the buffer to read the body through, e.g. from the BufferPool
+     * @param maxItemSize the largest item in bytes
+     */
+    public BulkReader(InputStream in, byte[] buffer, int maxItemSize) {
+        this.in = in;
+        this.input = buffer;
+        this.maxItemSize = maxItemSize;
+        this.item = new byte[Math.min(1024, maxItemSize)];
+    }
+
+    /**
+     * Reads the next item of the body.
+     *
+     * @return the length of the item in item(), or -1 after the last item
+     * @throws JSONException if the body is not a JSON array of objects or NDJSON, or an item
+     *         is too large
+     * @throws IOException if the body cannot be read
+     */
+    public int next() throws IOException, JSONException {
+        if (finished) {
+            return -1;
+        }
+        int c = nextNonWhitespace();
+        if (!started) {
+            started = true;
+            if (c == '[') {
+                array = true;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return finish();
+                }
+            }
+        } else if (array) {
+            if (c == ']') {
+                return finish();
+            }
+            if (c != ',') {
+                throw error("Expected , or ]");
+            }
+            c = nextNonWhitespace();
+        }
+        if (c < 0) {
+            if (array) {
+                throw error("Unexpected end of input");
+            }
+            finished = true;
+            return -1;
+        }
+        if (c != '{') {
+            throw error("Expected an object");
+        }
+        readObject();
+        return itemLength;
+    }
+
+    /**
+     * Returns the buffer holding the item last returned by next(). It is reused by the next call.
+     *
+     * @return the item buffer
+     */
+    public byte[] item() {
+        return item;
+    }
+
+    private int finish() throws IOException {
+        finished = true;
+        if (nextNonWhitespace() >= 0) {
+            throw error("Unexpected content after the array");
+        }
+        return -1;
+    }
+
+    /**
+     * Copies an object into the item buffer. The opening brace has already been read.
+     */
+    private void readObject() throws IOException {
+        itemLength = 0;
+        append('{');
+        int depth = 1;
+        boolean inString = false;
+        boolean escaped = false;
+        while (depth > 0) {
+            int c = read();
+            if (c < 0) {
+                throw error("Unexpected end of input");
+            }
+            append(c);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+        }
+    }
+
+    private void append(int c) {
+        if (itemLength == item.length) {
+            if (itemLength >= maxItemSize) {
+                throw error("Item larger than " + maxItemSize + " bytes");
+            }
+            item = Arrays.copyOf(item, (int) Math.min((long) item.length * 2, maxItemSize));
+        }
+        item[itemLength++] = (byte) c;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (inputPosition == inputLength) {
+            inputLength = in.read(input, 0, input.length);
+            if (inputLength <= 0) {
+                inputLength = 0;
+                inputPosition = 0;
+                return -1;
+            }
+            inputPosition = 0;
+        }
+        offset++;
+        return input[inputPosition++] & 0xff;
+    }
+
+    private JSONException error(String message) {
+        return new JSONException(message + " at " + offset);
+    }
+}
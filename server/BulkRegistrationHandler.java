@@ -0,0 +1,61 @@
+package com.server;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * POST /registration/bulk: registers many users in one request. Each item is a registration
+ * request as sent to /registration. A taken username fails its item with 409.
+ * Every password is hashed on the pool that also verifies the logins, which takes a few hundred
+ * milliseconds per password with the default PBKDF2 rounds. The endpoint is therefore only open
+ * to registered users, and takes at most -Dregistration.bulk.max (default 100) users per request.
+ */
+public class BulkRegistrationHandler extends BulkHandler<User> {
+
+    private final UserAuthenticator userAuthenticator;
+
+    public BulkRegistrationHandler(UserAuthenticator userAuthenticator) {
+        super(ServerConfig.getInt("registration.bulk.max", 100));
+        this.userAuthenticator = userAuthenticator;
+    }
+
+    @Override
+    protected User parse(byte[] bytes, int length) {
+        // Decoded to a String first: a tokener over a stream allocates far more than one line.
+        User user = User.fromJson(new JSONObject(new JSONTokener(new String(bytes, 0, length, StandardCharsets.UTF_8))));
+        if (!userAuthenticator.isValid(user)) {
+            throw new IllegalArgumentException("Missing or empty user fields");
+        }
+        return user;
+    }
+
+    @Override
+    protected void store(HttpExchange exchange, List<Item<User>> items) throws SQLException {
+        List<User> users = new ArrayList<>(items.size());
+        for (Item<User> item : items) {
+            users.add(item.getValue());
+        }
+        boolean[] added;
+        try {
+            added = userAuthenticator.addUsers(users);
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            for (Item<User> item : items) {
+                item.fail(500, "Password hashing failed");
+            }
+            return;
+        }
+        for (int i = 0; i < added.length; i++) {
+            if (!added[i]) {
+                items.get(i).fail(409, "User already registered");
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * GET /info/changes: feed of new and updated locations in the order they changed, as NDJSON
+ * or as server-sent events (format=sse or Accept: text/event-stream). Every location carries
+ * its changeSeq; a client passes the last one it has seen as since (or Last-Event-ID) to get
+ * only what changed after it. With follow=true (the default) the response stays open and
+ * new changes are sent as they are committed, with a heartbeat (an empty line, or an event
+ * stream comment) every -Dchanges.heartbeat milliseconds (default 15000) while nothing changes.
+ * Rows are read from the database -Dchanges.batch (default 256) at a time and only after the
+ * previous batch has been written to the client, so a slow client slows down its own feed
+ * instead of piling up rows in memory. A batch is written after its read connection is back in
+ * the pool, so a slow client does not hold a database reader either. At most -Dchanges.subscribers (default 32) feeds are
+ * open at once; further requests are answered with 503.
+ * <p>
+ * Every open feed holds a request thread of the server executor for as long as it is open.
+ * When the executor has a fixed number of threads (-Dserver.executor=bounded or shed, with
+ * -Dserver.executor.threads), the feeds are also limited to half of them, so that the other
+ * requests always have the other half. To allow more feeds, raise both settings.
+ */
+public class ChangeFeedHandler extends BaseHandler {
+
+    /**
+     * Framing of the locations in the feed.
+     */
+    public enum Format {
+        NDJSON("application/x-ndjson", "\n"),
+        SSE("text/event-stream", ":\n\n");
+
+        private final String contentType;
+        private final String heartbeat;
+
+        Format(String contentType, String heartbeat) {
+            this.contentType = contentType;
+            this.heartbeat = heartbeat;
+        }
+
+        public String before(long changeSeq) {
+            return this == SSE ? "id: " + changeSeq + "\nevent: location\ndata: " : "";
+        }
+
+        public String after() {
+            return this == SSE ? "\n\n" : "\n";
+        }
+    }
+
+    private final MessageDatabase database = MessageDatabase.getInstance();
+    private final int batchSize = Math.max(1, ServerConfig.getInt("changes.batch", 256));
+    private final long heartbeatMillis = Math.max(100, ServerConfig.getLong("changes.heartbeat", 15000));
+    private final int maxSubscribers;
+    private final Semaphore subscribers;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     * Creates the handler for a server whose executor runs at most requestThreads exchanges at once.
+     *
+     * @param requestThreads the thread limit of the server executor, Integer.MAX_VALUE if it has none
+     */
+    public ChangeFeedHandler(int requestThreads) {
+        int configured = Math.max(1, ServerConfig.getInt("changes.subscribers", 32));
+        this.maxSubscribers = Math.min(configured, Math.max(1, requestThreads / 2));
+        if (maxSubscribers < configured && System.getProperty("changes.subscribers") != null) {
+            System.err.println("changes.subscribers " + configured + " is more than half of the "
+                    + requestThreads + " request threads, allowing " + maxSubscribers + " feeds");
+        }
+        this.subscribers = new Semaphore(maxSubscribers);
+        Metrics.register("changeFeed", this::metrics);
+    }
+
+    /**
+     * Handles the HTTP request by checking the method and streaming the feed.
+     *
+     * @param exchange the HttpExchange object representing the HTTP request and response
+     */
+    @Override
+    public void handle(HttpExchange exchange) {
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                sendResponse(exchange, 400, "Not supported");
+                return;
+            }
+            handleGetRequest(exchange);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleGetRequest(HttpExchange exchange) throws IOException {
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String accept = requestHeaders.getFirst("Accept");
+        Format format = accept != null && accept.contains("text/event-stream") ? Format.SSE : Format.NDJSON;
+        long since = 0;
+        boolean follow = true;
+
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        try {
+            if (rawQuery != null) {
+                for (String parameter : rawQuery.split("&")) {
+                    if (parameter.isEmpty()) {
+                        continue;
+                    }
+                    int separator = parameter.indexOf('=');
+                    String name = separator < 0 ? parameter : parameter.substring(0, separator);
+                    String value = separator < 0 ? ""
+                            : URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+                    switch (name) {
+                        case "since":
+                            since = parseSeq(value);
+                            break;
+                        case "follow":
+                            follow = !value.equalsIgnoreCase("false");
+                            break;
+                        case "format":
+                            format = parseFormat(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown query parameter " + name);
+                    }
+                }
+            }
+            String lastEventId = requestHeaders.getFirst("Last-Event-ID");
+            if (lastEventId != null && !lastEventId.isEmpty()) {
+                since = parseSeq(lastEventId);
+            }
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, e.getMessage());
+            return;
+        }
+
+        if (!subscribers.tryAcquire()) {
+            rejected.increment();
+            exchange.getResponseHeaders().set("Retry-After", "5");
+            sendResponse(exchange, 503, "Too many change feed subscribers");
+            return;
+        }
+        try {
+            streamChanges(exchange, format, since, follow);
+        } finally {
+            subscribers.release();
+        }
+    }
+
+    /**
+     * Sends the changes after since, and with follow keeps sending them until the client goes away.
+     */
+    private void streamChanges(HttpExchange exchange, Format format, long since, boolean follow) throws IOException {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("Content-Type", format.contentType);
+        responseHeaders.set("Cache-Control", "no-cache");
+        ChunkedResponseStream body = new ChunkedResponseStream(exchange, 200);
+        ResponseCompression.Encoding encoding = ResponseCompression.negotiate(exchange.getRequestHeaders());
+        ResponseCompression.setHeaders(exchange, encoding);
+        OutputStream compressed = ResponseCompression.compressingStream(body, encoding);
+        JsonStreamWriter json = new JsonStreamWriter(compressed);
+
+        long lastSeq = since;
+        try {
+            while (true) {
+                // Read the version first, a change committed while the batch is read wakes up the wait below.
+                long version = database.getListingVersion();
+                long batchEnd = database.writeChanges(lastSeq, batchSize, json, format);
+                if (batchEnd != lastSeq) {
+                    batches.increment();
+                    lastSeq = batchEnd;
+                    json.flush();
+                    continue;
+                }
+                if (!follow) {
+                    break;
+                }
+                if (database.awaitListingChange(version, heartbeatMillis) == version) {
+                    json.raw(format.heartbeat);
+                    json.flush();
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            json.discard();
+            if (!body.isStarted()) {
+                ResponseCompression.discard(compressed);
+                responseHeaders.remove("Content-Encoding");
+                sendResponse(exchange, 500, "Database error");
+                return;
+            }
+            ResponseCompression.discard(compressed);
+            exchange.close();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client went away.
+            json.discard();
+            ResponseCompression.discard(compressed);
+            exchange.close();
+            return;
+        }
+
+        if (lastSeq == since && !body.isStarted()) {
+            json.discard();
+            ResponseCompression.discard(compressed);
+            responseHeaders.remove("Content-Encoding");
+            sendResponse(exchange, 204, -1);
+        } else {
+            json.close();
+        }
+    }
+
+    /**
+     * Returns the number of open feeds and the counters of the feed.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("subscribers", maxSubscribers - subscribers.availablePermits());
+        metrics.put("maxSubscribers", maxSubscribers);
+        metrics.put("rejected", rejected.sum());
+        metrics.put("batches", batches.sum());
+        return metrics;
+    }
+
+    private static Format parseFormat(String value) {
+        for (Format format : Format.values()) {
+            if (format.name().equalsIgnoreCase(value)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Invalid value for format");
+    }
+
+    private static long parseSeq(String value) {
+        try {
+            long seq = Long.parseLong(value.trim());
+            if (seq < 0) {
+                throw new IllegalArgumentException("Invalid value for since");
+            }
+            return seq;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for since", e);
+        }
+    }
+}
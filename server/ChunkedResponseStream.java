@@ -0,0 +1,62 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Response body that sends the response headers with chunked transfer encoding
+ * only when the first bytes are written. Until then the handler can still choose
+ * to send a different response, e.g. 204 when there turned out to be nothing to send.
+ */
+public class ChunkedResponseStream extends OutputStream {
+
+    private final HttpExchange exchange;
+    private final int statusCode;
+    private OutputStream body = null;
+
+    public ChunkedResponseStream(HttpExchange exchange, int statusCode) {
+        this.exchange = exchange;
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Returns true once the response headers have been sent.
+     *
+     * @return true if the response has been started
+     */
+    public boolean isStarted() {
+        return body != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        start().write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        start().write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (body != null) {
+            body.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        start().close();
+    }
+
+    private OutputStream start() throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(statusCode, 0);
+            body = exchange.getResponseBody();
+        }
+        return body;
+    }
+}
@@ -0,0 +1,122 @@
+package com.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Fixed size pool of read-only SQLite connections. The database runs in WAL mode,
+ * so readers work in parallel with each other and with the single writer connection.
+ * Every connection caches its prepared statements.
+ */
+public class ConnectionPool {
+
+    private final List<PooledConnection> connections = new ArrayList<>();
+    private final BlockingQueue<PooledConnection> idle;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    public ConnectionPool(String url, int size) throws SQLException {
+        idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection connection = DriverManager.getConnection(url);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA busy_timeout = 5000");
+                statement.execute("PRAGMA query_only = true");
+            }
+            PooledConnection pooledConnection = new PooledConnection(connection);
+            connections.add(pooledConnection);
+            idle.add(pooledConnection);
+        }
+    }
+
+    /**
+     * Takes a connection from the pool, waiting until one is free.
+     *
+     * @return a read-only connection that must be given back with release()
+     * @throws SQLException if the thread is interrupted while waiting
+     */
+    public PooledConnection acquire() throws SQLException {
+        PooledConnection connection = idle.poll();
+        if (connection == null) {
+            long start = System.nanoTime();
+            try {
+                connection = idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", e);
+            }
+            long waited = System.nanoTime() - start;
+            waitNanos.add(waited);
+            maxWaitNanos.accumulate(waited);
+        }
+        acquired.increment();
+        return connection;
+    }
+
+    /**
+     * Gives a connection back to the pool.
+     *
+     * @param connection the connection taken with acquire()
+     */
+    public void release(PooledConnection connection) {
+        idle.offer(connection);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public int idleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the size, wait time and statement cache metrics of the pool.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        long hits = 0;
+        long misses = 0;
+        for (PooledConnection connection : connections) {
+            hits += connection.getHits();
+            misses += connection.getMisses();
+        }
+        long acquisitions = acquired.sum();
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("size", size());
+        metrics.put("idle", idleCount());
+        metrics.put("acquired", acquisitions);
+        metrics.put("totalWaitMillis", TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()));
+        metrics.put("averageWaitMicros",
+                acquisitions == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(waitNanos.sum()) / acquisitions);
+        metrics.put("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+        metrics.put("statementCacheHits", hits);
+        metrics.put("statementCacheMisses", misses);
+        metrics.put("statementCacheHitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return metrics;
+    }
+
+    /**
+     * Closes every connection of the pool.
+     */
+    public void close() {
+        for (PooledConnection connection : connections) {
+            connection.close();
+        }
+    }
+}
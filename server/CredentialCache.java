@@ -0,0 +1,178 @@
+package com.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.JSONObject;
+
+/**
+ * Bounded cache of successful password verifications.
+ * Passwords are never stored, only an HMAC of them with a key that lives as long as the process.
+ * The cache must be invalidated for a user whenever that user's password changes.
+ */
+public class CredentialCache {
+
+    private static final int EVICTION_SAMPLE = 16;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> mac;
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry {
+        final byte[] passwordHash;
+        final long expiresAt;
+
+        Entry(byte[] passwordHash, long expiresAt) {
+            this.passwordHash = passwordHash;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public CredentialCache(int maxEntries, long ttlSeconds) {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, "HmacSHA256");
+        this.mac = ThreadLocal.withInitial(this::newMac);
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * Creates the cache configured with -Dauth.cache.size and -Dauth.cache.ttl.
+     *
+     * @return the configured cache
+     */
+    public static CredentialCache fromConfig() {
+        int maxEntries = ServerConfig.getInt("auth.cache.size", 10000);
+        long ttlSeconds = ServerConfig.getLong("auth.cache.ttl", 300);
+        return new CredentialCache(Math.max(0, maxEntries), Math.max(0, ttlSeconds));
+    }
+
+    /**
+     * Checks if the given username and password were verified recently.
+     *
+     * @param username the username of the user
+     * @param password the plain password given by the user
+     * @return true if the same credentials were verified and have not expired, false otherwise
+     */
+    public boolean isVerified(String username, String password) {
+        Entry entry = entries.get(username);
+        if (entry == null) {
+            misses.increment();
+            return false;
+        }
+        if (entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(username, entry);
+            misses.increment();
+            return false;
+        }
+        if (!MessageDigest.isEqual(entry.passwordHash, hash(username, password))) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * Remembers a successful verification of the given credentials.
+     *
+     * @param username the username of the user
+     * @param password the plain password that was verified
+     */
+    public void put(String username, String password) {
+        if (maxEntries == 0 || ttlNanos == 0) {
+            return;
+        }
+        if (entries.size() >= maxEntries && !entries.containsKey(username)) {
+            evict();
+        }
+        entries.put(username, new Entry(hash(username, password), System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Forgets the cached verification of a user.
+     *
+     * @param username the username of the user
+     */
+    public void invalidate(String username) {
+        entries.remove(username);
+    }
+
+    /**
+     * Returns the size and hit/miss counters of the cache.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("size", entries.size());
+        metrics.put("maxSize", maxEntries);
+        metrics.put("hits", hitCount);
+        metrics.put("misses", missCount);
+        metrics.put("evictions", evictions.sum());
+        metrics.put("hitRate", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        return metrics;
+    }
+
+    /**
+     * Makes room for a new entry. Looks at a small sample of entries and removes
+     * the expired ones, or the one closest to expiring if none has expired.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        Map.Entry<String, Entry> oldest = null;
+        boolean removed = false;
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        for (int i = 0; i < EVICTION_SAMPLE && iterator.hasNext(); i++) {
+            Map.Entry<String, Entry> candidate = iterator.next();
+            if (candidate.getValue().expiresAt - now <= 0) {
+                iterator.remove();
+                evictions.increment();
+                removed = true;
+            } else if (oldest == null || candidate.getValue().expiresAt - oldest.getValue().expiresAt < 0) {
+                oldest = candidate;
+            }
+        }
+        if (!removed && oldest != null && entries.remove(oldest.getKey(), oldest.getValue())) {
+            evictions.increment();
+        }
+    }
+
+    private byte[] hash(String username, String password) {
+        Mac hmac = mac.get();
+        hmac.update(username.getBytes(StandardCharsets.UTF_8));
+        hmac.update((byte) 0);
+        return hmac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Mac newMac() {
+        try {
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(key);
+            return hmac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+}
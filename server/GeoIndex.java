@@ -0,0 +1,386 @@
+package com.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory spatial index of the location coordinates for /info/nearby.
+ * Locations are kept in a grid of cells of -Dgeo.cell degrees (default 0.05, about 5 km
+ * north to south), each cell holding the IDs and coordinates of its locations in flat arrays.
+ * A query only looks at the cells its area overlaps, and at only the non-empty cells when
+ * the area covers more cells than there are non-empty ones. Locations without coordinates
+ * (latitude or longitude 0, as in the listing) are not indexed.
+ * Queries run in parallel; changes take the index for themselves for the short time they need.
+ */
+public class GeoIndex {
+
+    private static final double EARTH_RADIUS = 6_371_008.8;
+    private static final double HALF_CIRCUMFERENCE = Math.PI * EARTH_RADIUS;
+
+    private final double cellSize;
+    private final int lonCells;
+    private final Map<Long, Cell> cells = new HashMap<>();
+    private final Map<Integer, Long> cellOf = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * A location found by a query and its distance from the query point in metres.
+     *
+     * @param locationID the ID of the location
+     * @param distance the distance in metres, 0 for bounding box queries
+     */
+    public record Hit(int locationID, double distance) {
+    }
+
+    private static final class Cell {
+        int[] ids = new int[4];
+        double[] latitudes = new double[4];
+        double[] longitudes = new double[4];
+        int size = 0;
+
+        void add(int locationID, double latitude, double longitude) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                latitudes = Arrays.copyOf(latitudes, size * 2);
+                longitudes = Arrays.copyOf(longitudes, size * 2);
+            }
+            ids[size] = locationID;
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            size++;
+        }
+
+        void remove(int locationID) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == locationID) {
+                    size--;
+                    ids[i] = ids[size];
+                    latitudes[i] = latitudes[size];
+                    longitudes[i] = longitudes[size];
+                    return;
+                }
+            }
+        }
+    }
+
+    public GeoIndex(double cellSize) {
+        this.cellSize = Math.min(90.0, Math.max(0.001, cellSize));
+        this.lonCells = (int) Math.ceil(360.0 / this.cellSize);
+    }
+
+    /**
+     * Creates the index configured with -Dgeo.cell.
+     *
+     * @return the configured index
+     */
+    public static GeoIndex fromConfig() {
+        return new GeoIndex(Double.parseDouble(ServerConfig.getString("geo.cell", "0.05")));
+    }
+
+    /**
+     * Adds a location or moves it to new coordinates. A location moved to 0 is removed.
+     *
+     * @param locationID the ID of the location
+     * @param latitude the latitude of the location
+     * @param longitude the longitude of the location
+     */
+    public void put(int locationID, double latitude, double longitude) {
+        boolean indexed = latitude != 0.0 && longitude != 0.0 && Math.abs(latitude) <= 90.0
+                && Math.abs(longitude) <= 180.0;
+        lock.writeLock().lock();
+        try {
+            Long oldKey = cellOf.remove(locationID);
+            if (oldKey != null) {
+                Cell oldCell = cells.get(oldKey);
+                oldCell.remove(locationID);
+                if (oldCell.size == 0) {
+                    cells.remove(oldKey);
+                }
+            }
+            if (indexed) {
+                long key = key(latIndex(latitude), lonIndex(longitude));
+                cells.computeIfAbsent(key, k -> new Cell()).add(locationID, latitude, longitude);
+                cellOf.put(locationID, key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of indexed locations.
+     *
+     * @return the number of locations with coordinates
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return cellOf.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the locations nearest to a point, nearest first.
+     * The search starts with a radius of about one cell and doubles it until enough
+     * locations are found, so a dense area is answered from a few cells. Only the nearest
+     * limit locations seen so far are kept, so the cost grows with the limit and not with
+     * the number of locations within the radius.
+     *
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @param radius the largest distance in metres, 0 for no limit
+     * @param limit the most locations to return
+     * @return the nearest locations within the radius
+     */
+    public List<Hit> nearest(double latitude, double longitude, double radius, int limit) {
+        double maxRadius = radius > 0 ? Math.min(radius, HALF_CIRCUMFERENCE) : HALF_CIRCUMFERENCE;
+        double searchRadius = Math.min(maxRadius, Math.toRadians(cellSize) * EARTH_RADIUS);
+        lock.readLock().lock();
+        try {
+            while (true) {
+                Best nearest = new Best(limit);
+                collectWithin(latitude, longitude, searchRadius, nearest);
+                if (nearest.isFull() || searchRadius >= maxRadius) {
+                    // Everything outside the search radius is farther than every hit inside it.
+                    return nearest.toHits(true);
+                }
+                searchRadius = Math.min(maxRadius, searchRadius * 2);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the locations inside a bounding box, in locationID order. A box whose west edge is
+     * east of its east edge crosses the antimeridian.
+     *
+     * @param minLatitude the south edge
+     * @param minLongitude the west edge
+     * @param maxLatitude the north edge
+     * @param maxLongitude the east edge
+     * @param limit the most locations to return
+     * @return the locations in the box
+     */
+    public List<Hit> within(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+            int limit) {
+        Best lowest = new Best(limit);
+        lock.readLock().lock();
+        try {
+            if (minLongitude <= maxLongitude) {
+                collectBox(minLatitude, maxLatitude, minLongitude, maxLongitude, lowest);
+            } else {
+                collectBox(minLatitude, maxLatitude, minLongitude, 180.0, lowest);
+                collectBox(minLatitude, maxLatitude, -180.0, maxLongitude, lowest);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return lowest.toHits(false);
+    }
+
+    /**
+     * Collects the nearest locations within a distance of a point. The cells scanned are those
+     * of the bounding box of the circle, the whole band of longitudes when the circle covers a pole.
+     */
+    private void collectWithin(double latitude, double longitude, double radius, Best nearest) {
+        double angle = radius / EARTH_RADIUS;
+        double deltaLatitude = Math.toDegrees(angle);
+        double minLatitude = latitude - deltaLatitude;
+        double maxLatitude = latitude + deltaLatitude;
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        double cosLat = Math.cos(lat);
+
+        double[] lonRanges;
+        if (minLatitude <= -90.0 || maxLatitude >= 90.0 || angle >= Math.PI / 2) {
+            lonRanges = new double[] { -180.0, 180.0 };
+        } else {
+            double deltaLongitude = Math.toDegrees(Math.asin(Math.min(1.0, Math.sin(angle) / cosLat)));
+            double west = longitude - deltaLongitude;
+            double east = longitude + deltaLongitude;
+            if (west < -180.0) {
+                lonRanges = new double[] { west + 360.0, 180.0, -180.0, east };
+            } else if (east > 180.0) {
+                lonRanges = new double[] { west, 180.0, -180.0, east - 360.0 };
+            } else {
+                lonRanges = new double[] { west, east };
+            }
+        }
+
+        for (int r = 0; r < lonRanges.length; r += 2) {
+            int minLat = latIndex(Math.max(-90.0, minLatitude));
+            int maxLat = latIndex(Math.min(90.0, maxLatitude));
+            int minLon = lonIndex(lonRanges[r]);
+            int maxLon = lonIndex(lonRanges[r + 1]);
+            forEachCell(minLat, maxLat, minLon, maxLon, cell -> {
+                for (int i = 0; i < cell.size; i++) {
+                    // A location is at least as far as its difference in latitude, so once enough
+                    // are found most of the rest are ruled out without the haversine.
+                    double bound = nearest.isFull() ? Math.min(radius, nearest.worst()) : radius;
+                    if (Math.abs(Math.toRadians(cell.latitudes[i]) - lat) * EARTH_RADIUS > bound) {
+                        continue;
+                    }
+                    double distance = distance(lat, lon, cosLat, cell.latitudes[i], cell.longitudes[i]);
+                    if (distance <= radius) {
+                        nearest.offer(cell.ids[i], distance);
+                    }
+                }
+            });
+        }
+    }
+
+    private void collectBox(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude,
+            Best lowest) {
+        forEachCell(latIndex(minLatitude), latIndex(maxLatitude), lonIndex(minLongitude), lonIndex(maxLongitude),
+                cell -> {
+                    for (int i = 0; i < cell.size; i++) {
+                        double latitude = cell.latitudes[i];
+                        double longitude = cell.longitudes[i];
+                        if (latitude >= minLatitude && latitude <= maxLatitude && longitude >= minLongitude
+                                && longitude <= maxLongitude) {
+                            lowest.offer(cell.ids[i], cell.ids[i]);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * The limit locations with the lowest keys offered to it, the distance or the locationID,
+     * in a max-heap on the key so that the worst of them is replaced in O(log limit).
+     */
+    private static final class Best {
+        final int limit;
+        int[] ids;
+        double[] keys;
+        int size = 0;
+
+        Best(int limit) {
+            this.limit = Math.max(0, limit);
+            ids = new int[Math.min(this.limit, 16)];
+            keys = new double[ids.length];
+        }
+
+        boolean isFull() {
+            return size >= limit;
+        }
+
+        double worst() {
+            return keys[0];
+        }
+
+        void offer(int locationID, double key) {
+            if (size < limit) {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, Math.min(limit, size * 2));
+                    keys = Arrays.copyOf(keys, ids.length);
+                }
+                int i = size++;
+                while (i > 0 && keys[(i - 1) / 2] < key) {
+                    int parent = (i - 1) / 2;
+                    ids[i] = ids[parent];
+                    keys[i] = keys[parent];
+                    i = parent;
+                }
+                ids[i] = locationID;
+                keys[i] = key;
+            } else if (limit > 0 && key < keys[0]) {
+                siftDown(locationID, key, size);
+            }
+        }
+
+        /**
+         * Puts the location at the root and moves it down to its place among the first n entries.
+         */
+        private void siftDown(int locationID, double key, int n) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= n) {
+                    break;
+                }
+                if (child + 1 < n && keys[child + 1] > keys[child]) {
+                    child++;
+                }
+                if (keys[child] <= key) {
+                    break;
+                }
+                ids[i] = ids[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            ids[i] = locationID;
+            keys[i] = key;
+        }
+
+        /**
+         * Empties the heap into hits ordered by the key, lowest first.
+         */
+        List<Hit> toHits(boolean distances) {
+            Hit[] hits = new Hit[size];
+            for (int n = size; n > 0; n--) {
+                hits[n - 1] = new Hit(ids[0], distances ? keys[0] : 0.0);
+                siftDown(ids[n - 1], keys[n - 1], n - 1);
+            }
+            size = 0;
+            return new ArrayList<>(Arrays.asList(hits));
+        }
+    }
+
+    private interface CellVisitor {
+        void visit(Cell cell);
+    }
+
+    private void forEachCell(int minLat, int maxLat, int minLon, int maxLon, CellVisitor visitor) {
+        long range = (long) (maxLat - minLat + 1) * (maxLon - minLon + 1);
+        if (range > cells.size()) {
+            for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+                long key = entry.getKey();
+                int latIndex = (int) (key >>> 32);
+                int lonIndex = (int) key;
+                if (latIndex >= minLat && latIndex <= maxLat && lonIndex >= minLon && lonIndex <= maxLon) {
+                    visitor.visit(entry.getValue());
+                }
+            }
+            return;
+        }
+        for (int latIndex = minLat; latIndex <= maxLat; latIndex++) {
+            for (int lonIndex = minLon; lonIndex <= maxLon; lonIndex++) {
+                Cell cell = cells.get(key(latIndex, lonIndex));
+                if (cell != null) {
+                    visitor.visit(cell);
+                }
+            }
+        }
+    }
+
+    /**
+     * Great circle distance in metres with the haversine formula.
+     */
+    private static double distance(double lat, double lon, double cosLat, double latitude, double longitude) {
+        double otherLat = Math.toRadians(latitude);
+        double sinLat = Math.sin((otherLat - lat) / 2);
+        double sinLon = Math.sin((Math.toRadians(longitude) - lon) / 2);
+        double a = sinLat * sinLat + cosLat * Math.cos(otherLat) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    private int latIndex(double latitude) {
+        return (int) Math.floor((latitude + 90.0) / cellSize);
+    }
+
+    private int lonIndex(double longitude) {
+        return Math.min(lonCells - 1, (int) Math.floor((longitude + 180.0) / cellSize));
+    }
+
+    private static long key(int latIndex, int lonIndex) {
+        return ((long) latIndex << 32) | (lonIndex & 0xffffffffL);
+    }
+}
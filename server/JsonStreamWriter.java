@@ -0,0 +1,350 @@
+package com.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes JSON straight to an output stream as UTF-8 without building a JSONObject or
+ * String of the whole document. Characters are encoded into a buffer taken from the
+ * BufferPool that is flushed to the stream when it fills up, so memory use stays constant
+ * however long the document is. Nothing reaches the stream before the buffer is full or
+ * flush() or close() is called. A writer that is abandoned instead of closed gives its
+ * buffer back with discard().
+ */
+public class JsonStreamWriter implements Closeable {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private boolean closed = false;
+    private int position = 0;
+    private boolean needsComma = false;
+
+    public JsonStreamWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = BufferPool.getInstance().acquire();
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        separate();
+        writeByte('[');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        writeByte(']');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        separate();
+        writeByte('{');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        writeByte('}');
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes the name of the next member of an object.
+     *
+     * @param name the member name
+     * @return this writer
+     * @throws IOException if writing to the stream fails
+     */
+    public JsonStreamWriter name(String name) throws IOException {
+        separate();
+        writeString(name);
+        writeByte(':');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonStreamWriter value(String value) throws IOException {
+        separate();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        needsComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) throws IOException {
+        separate();
+        writeLong(value);
+        needsComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(double value) throws IOException {
+        separate();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeAscii("null");
+        } else if (value == (long) value && Math.abs(value) < 1e15) {
+            writeLong((long) value);
+        } else {
+            writeAscii(Double.toString(value));
+        }
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes ASCII text verbatim between top level values, e.g. the line breaks of NDJSON or
+     * the framing of server-sent events. The next value is not preceded by a comma.
+     *
+     * @param text the ASCII text
+     * @return this writer
+     * @throws IOException if writing to the stream fails
+     */
+    public JsonStreamWriter raw(String text) throws IOException {
+        writeAscii(text);
+        needsComma = false;
+        return this;
+    }
+
+    /**
+     * Writes already encoded UTF-8 JSON as the next value.
+     *
+     * @param json the encoded JSON value
+     * @return this writer
+     * @throws IOException if writing to the stream fails
+     */
+    public JsonStreamWriter rawValue(byte[] json) throws IOException {
+        separate();
+        if (json.length > buffer.length - position) {
+            flushBuffer();
+            out.write(json);
+        } else {
+            System.arraycopy(json, 0, buffer, position, json.length);
+            position += json.length;
+        }
+        needsComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter field(String name, String value) throws IOException {
+        return name(name).value(value);
+    }
+
+    public JsonStreamWriter field(String name, long value) throws IOException {
+        return name(name).value(value);
+    }
+
+    public JsonStreamWriter field(String name, double value) throws IOException {
+        return name(name).value(value);
+    }
+
+    /**
+     * Writes a member whose value is an epoch timestamp as an ISO time string, formatted
+     * straight into the buffer.
+     *
+     * @param name the member name
+     * @param epoch the epoch timestamp in milliseconds
+     * @return this writer
+     * @throws IOException if writing to the stream fails
+     */
+    public JsonStreamWriter timeField(String name, long epoch) throws IOException {
+        name(name);
+        ensure(TimeTools.ISO_LENGTH + 2);
+        buffer[position] = '"';
+        int length = TimeTools.formatEpoch(epoch, buffer, position + 1);
+        if (length == 0) {
+            return value(TimeTools.convertEpochToZoneTime(epoch));
+        }
+        position += length + 1;
+        buffer[position++] = '"';
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes the buffered bytes to the stream and flushes it.
+     *
+     * @throws IOException if writing to the stream fails
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes the buffered bytes and closes the stream. The buffer goes back to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flushBuffer();
+            out.close();
+        } finally {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * Gives the buffer back to the pool without writing what is left in it or closing the
+     * stream, for a document that is abandoned. Does nothing if the writer is already closed.
+     */
+    public void discard() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        position = 0;
+        BufferPool.getInstance().release(buffer);
+    }
+
+    private void separate() throws IOException {
+        if (needsComma) {
+            writeByte(',');
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.length - position < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void writeAscii(String text) throws IOException {
+        int length = text.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writeByte('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    ensure(2);
+                    buffer[position++] = '\\';
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x20) {
+                    writeControl(c);
+                } else {
+                    writeByte(c);
+                }
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, replaced like String.getBytes does.
+                writeByte('?');
+            } else if (c == '\u2028' || c == '\u2029') {
+                writeUnicodeEscape(c);
+            } else {
+                ensure(3);
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeControl(char c) throws IOException {
+        switch (c) {
+            case '\b':
+                ensure(2);
+                buffer[position++] = '\\';
+                buffer[position++] = 'b';
+                break;
+            case '\t':
+                ensure(2);
+                buffer[position++] = '\\';
+                buffer[position++] = 't';
+                break;
+            case '\n':
+                ensure(2);
+                buffer[position++] = '\\';
+                buffer[position++] = 'n';
+                break;
+            case '\f':
+                ensure(2);
+                buffer[position++] = '\\';
+                buffer[position++] = 'f';
+                break;
+            case '\r':
+                ensure(2);
+                buffer[position++] = '\\';
+                buffer[position++] = 'r';
+                break;
+            default:
+                writeUnicodeEscape(c);
+                break;
+        }
+    }
+
+    private void writeUnicodeEscape(char c) throws IOException {
+        ensure(6);
+        buffer[position++] = '\\';
+        buffer[position++] = 'u';
+        buffer[position++] = HEX[(c >> 12) & 0xf];
+        buffer[position++] = HEX[(c >> 8) & 0xf];
+        buffer[position++] = HEX[(c >> 4) & 0xf];
+        buffer[position++] = HEX[c & 0xf];
+    }
+}
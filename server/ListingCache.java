@@ -0,0 +1,252 @@
+package com.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONObject;
+
+/**
+ * Cache of the serialized first page of the location listing, with its compressed variants.
+ * An entry is valid while the listing version of the database has not changed, and for at most
+ * -Dinfo.cache.ttl seconds (default 30) so that the weather of the cached rows does not go stale.
+ * A listing larger than -Dinfo.cache.max bytes (default 8 MB) is not cached: its load stops at
+ * the limit and the version is marked oversized, so that the listing is streamed without
+ * loading it again until the next write.
+ */
+public class ListingCache {
+
+    /**
+     * A cached listing. The body is null when there were no locations or the listing is oversized.
+     * Each compressed variant is made once, by the first request that asks for it.
+     */
+    public static final class Entry {
+        final long version;
+        final long expiresAt;
+        final byte[] body;
+        final boolean oversized;
+        final String etag;
+        private final byte[][] encodedBodies = new byte[ResponseCompression.Encoding.values().length][];
+
+        Entry(long version, long expiresAt, byte[] body, boolean oversized, String etag) {
+            this.version = version;
+            this.expiresAt = expiresAt;
+            this.body = body;
+            this.oversized = oversized;
+            this.etag = etag;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Tells if the listing of this version is larger than the cache takes, and has to be
+         * sent without the cache.
+         *
+         * @return true if the listing is oversized
+         */
+        public boolean isOversized() {
+            return oversized;
+        }
+
+        /**
+         * Returns the body in the given coding, compressing it on first use.
+         *
+         * @param encoding the content coding
+         * @return the encoded body
+         */
+        public byte[] getBody(ResponseCompression.Encoding encoding) {
+            if (encoding == ResponseCompression.Encoding.IDENTITY) {
+                return body;
+            }
+            synchronized (encodedBodies) {
+                byte[] encoded = encodedBodies[encoding.ordinal()];
+                if (encoded == null) {
+                    encoded = ResponseCompression.compress(body, encoding);
+                    encodedBodies[encoding.ordinal()] = encoded;
+                }
+                return encoded;
+            }
+        }
+
+        int encodedLength(ResponseCompression.Encoding encoding) {
+            synchronized (encodedBodies) {
+                byte[] encoded = encodedBodies[encoding.ordinal()];
+                return encoded == null ? 0 : encoded.length;
+            }
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+    /**
+     * Builds the listing on a cache miss.
+     */
+    public interface Loader {
+        /**
+         * Writes the listing to the stream.
+         *
+         * @param out the stream of the listing, which fails once the listing is over the size limit
+         * @return the number of locations written
+         */
+        int load(OutputStream out) throws SQLException, IOException;
+    }
+
+    /**
+     * Thrown by the stream of a load when the listing goes over the size limit.
+     */
+    private static final class OversizedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OversizedException() {
+            super("Listing is larger than the cache");
+        }
+    }
+
+    /**
+     * Buffer that fails instead of growing over the size limit.
+     */
+    private static final class LimitedBuffer extends OutputStream {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final int maxBytes;
+
+        LimitedBuffer(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffer.size() >= maxBytes) {
+                throw new OversizedException();
+            }
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > maxBytes - buffer.size()) {
+                throw new OversizedException();
+            }
+            buffer.write(b, off, len);
+        }
+
+        byte[] toByteArray() {
+            return buffer.toByteArray();
+        }
+    }
+
+    private final long ttlNanos;
+    private final int maxBytes;
+    // The listing version restarts from zero with the server, so the ETags carry the start time.
+    private final String etagPrefix = "W/\"" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    private final ReentrantLock loadLock = new ReentrantLock();
+    private volatile Entry entry = null;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder oversizedLoads = new LongAdder();
+
+    public ListingCache(long ttlSeconds, int maxBytes) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates the cache configured with -Dinfo.cache.ttl and -Dinfo.cache.max.
+     *
+     * @return the configured cache
+     */
+    public static ListingCache fromConfig() {
+        return new ListingCache(ServerConfig.getLong("info.cache.ttl", 30),
+                ServerConfig.getInt("info.cache.max", 8 * 1024 * 1024));
+    }
+
+    /**
+     * Returns the cached listing of the given version, loading it if it is missing or expired.
+     * Only one caller loads at a time, the others wait and get its result. If the listing is
+     * over the size limit, the entry returned is marked oversized and has no body.
+     *
+     * @param version the current listing version, read before the listing is loaded
+     * @param loader builds the listing, returning null if there are no locations
+     * @return the listing
+     * @throws SQLException if the listing cannot be read
+     * @throws IOException if the listing cannot be serialized
+     */
+    public Entry get(long version, Loader loader) throws SQLException, IOException {
+        Entry current = entry;
+        if (isValid(current, version)) {
+            hits.increment();
+            return current;
+        }
+
+        loadLock.lock();
+        try {
+            current = entry;
+            if (isValid(current, version)) {
+                hits.increment();
+                return current;
+            }
+            misses.increment();
+            LimitedBuffer buffer = new LimitedBuffer(maxBytes);
+            Entry loaded;
+            try {
+                int count = loader.load(buffer);
+                loaded = new Entry(version, System.nanoTime() + ttlNanos, count == 0 ? null : buffer.toByteArray(),
+                        false, etag(version));
+            } catch (OversizedException e) {
+                oversizedLoads.increment();
+                loaded = new Entry(version, System.nanoTime() + ttlNanos, null, true, null);
+            }
+            entry = loaded;
+            return loaded;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the ETag of the listing of the given version. It is weak because the weather in
+     * the listing may be refreshed without a new version.
+     *
+     * @param version the listing version
+     * @return the ETag
+     */
+    public String etag(long version) {
+        return etagPrefix + version + "\"";
+    }
+
+    /**
+     * Returns the cache counters.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        Entry current = entry;
+        JSONObject metrics = new JSONObject();
+        metrics.put("hits", hits.sum());
+        metrics.put("misses", misses.sum());
+        metrics.put("oversizedLoads", oversizedLoads.sum());
+        metrics.put("version", current == null ? -1 : current.version);
+        metrics.put("oversized", current != null && current.oversized);
+        metrics.put("bytes", current == null || current.body == null ? 0 : current.body.length);
+        metrics.put("gzipBytes", current == null ? 0 : current.encodedLength(ResponseCompression.Encoding.GZIP));
+        metrics.put("deflateBytes", current == null ? 0 : current.encodedLength(ResponseCompression.Encoding.DEFLATE));
+        return metrics;
+    }
+
+    /**
+     * An oversized marker stays valid until the version changes, since the listing does not
+     * shrink without a write.
+     */
+    private static boolean isValid(Entry entry, long version) {
+        return entry != null && entry.version == version
+                && (entry.oversized || entry.expiresAt - System.nanoTime() > 0);
+    }
+}
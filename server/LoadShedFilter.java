@@ -0,0 +1,41 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Answers exchanges rejected by the ServerExecutor with 503 before they reach
+ * authentication or the handler.
+ */
+public class LoadShedFilter extends Filter {
+
+    private static final byte[] RESPONSE = "Server busy".getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        if (!ServerExecutor.isShedding()) {
+            chain.doFilter(exchange);
+            return;
+        }
+
+        try (InputStream stream = exchange.getRequestBody()) {
+            stream.transferTo(OutputStream.nullOutputStream());
+        }
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.sendResponseHeaders(503, RESPONSE.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(RESPONSE);
+        outputStream.flush();
+        outputStream.close();
+    }
+
+    @Override
+    public String description() {
+        return "Sends 503 when the server executor queue is full";
+    }
+}
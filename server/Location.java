@@ -0,0 +1,19 @@
+package com.server;
+
+/**
+ * A location as posted by a client. Text fields are null when they were not in the request.
+ *
+ * @param locationName the name of the location
+ * @param locationDescription the description of the location
+ * @param locationCity the city of the location
+ * @param locationCountry the country of the location
+ * @param locationStreetAddress the street address of the location
+ * @param originalPostingTime the posting time in ISO format
+ * @param latitude the latitude, 0 if not given
+ * @param longitude the longitude, 0 if not given
+ * @param weather true if the weather of the location was requested
+ */
+public record Location(String locationName, String locationDescription, String locationCity,
+        String locationCountry, String locationStreetAddress, String originalPostingTime,
+        double latitude, double longitude, boolean weather) implements LocationCommand {
+}
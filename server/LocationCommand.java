@@ -0,0 +1,7 @@
+package com.server;
+
+/**
+ * A location POST to /info: a new location, an update of a location or a visit to one.
+ */
+public sealed interface LocationCommand permits Location, LocationUpdate, Visit {
+}
@@ -0,0 +1,435 @@
+package com.server;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * Parser for the JSON body of a location POST. It reads the UTF-8 bytes of the body once,
+ * knows the fields of the location schema and decodes them straight into a Location,
+ * LocationUpdate or Visit without building a JSONObject. A field that is not in the schema,
+ * appears twice, has the wrong type or is longer than -Dinfo.field.max characters (default
+ * 1024) fails the parse as soon as it is read.
+ */
+public class LocationParser {
+
+    private static final int maxFieldLength = ServerConfig.getInt("info.field.max", 1024);
+    private static final int MAX_DEPTH = 16;
+
+    private static final String[] FIELDS = { "locationID", "locationVisitor", "updatereason", "locationName",
+            "locationDescription", "locationCity", "locationCountry", "locationStreetAddress",
+            "originalPostingTime", "latitude", "longitude", "weather" };
+    private static final byte[][] FIELD_BYTES = new byte[FIELDS.length][];
+    private static final int LOCATION_ID = 0;
+    private static final int LOCATION_VISITOR = 1;
+    private static final int UPDATE_REASON = 2;
+    private static final int LOCATION_NAME = 3;
+    private static final int ORIGINAL_POSTING_TIME = 8;
+    private static final int LATITUDE = 9;
+    private static final int LONGITUDE = 10;
+    private static final int WEATHER = 11;
+
+    static {
+        for (int i = 0; i < FIELDS.length; i++) {
+            FIELD_BYTES[i] = FIELDS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final byte[] in;
+    private final int end;
+    private int position;
+
+    private LocationParser(byte[] in, int offset, int length) {
+        this.in = in;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Parses a location POST body.
+     * A body with locationID and locationVisitor is a visit, one with locationID and updatereason
+     * is an update, anything else is a new location. Missing text fields are left null for the
+     * caller to check.
+     *
+     * @param bytes the buffer holding the UTF-8 body
+     * @param length the length of the body
+     * @return the parsed command
+     * @throws JSONException if the body is not valid JSON or does not fit the schema
+     */
+    public static LocationCommand parse(byte[] bytes, int length) throws JSONException {
+        return new LocationParser(bytes, 0, length).parseCommand();
+    }
+
+    private LocationCommand parseCommand() {
+        String[] text = new String[ORIGINAL_POSTING_TIME + 1];
+        boolean[] seen = new boolean[FIELDS.length];
+        long locationID = 0;
+        double latitude = 0.0;
+        double longitude = 0.0;
+
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                int field = readFieldName();
+                if (seen[field]) {
+                    throw error("Duplicate field " + FIELDS[field]);
+                }
+                seen[field] = true;
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+
+                switch (field) {
+                    case LOCATION_ID:
+                        locationID = (long) readNumber(field, false);
+                        break;
+                    case LATITUDE:
+                        latitude = readNumber(field, true);
+                        break;
+                    case LONGITUDE:
+                        longitude = readNumber(field, true);
+                        break;
+                    case WEATHER:
+                        // Only the presence of the field matters.
+                        skipValue(0);
+                        break;
+                    default:
+                        text[field] = readString(field);
+                        break;
+                }
+
+                skipWhitespace();
+                int next = read();
+                if (next == '}') {
+                    break;
+                }
+                if (next != ',') {
+                    throw error("Expected , or }");
+                }
+            }
+        }
+        skipWhitespace();
+        if (position != end) {
+            throw error("Unexpected content after the object");
+        }
+
+        if (seen[LOCATION_ID] && locationID != (int) locationID) {
+            throw error("Invalid locationID");
+        }
+        if (seen[LOCATION_ID] && seen[LOCATION_VISITOR]) {
+            return new Visit((int) locationID, text[LOCATION_VISITOR]);
+        }
+        Location location = new Location(text[LOCATION_NAME], text[LOCATION_NAME + 1], text[LOCATION_NAME + 2],
+                text[LOCATION_NAME + 3], text[LOCATION_NAME + 4], text[ORIGINAL_POSTING_TIME], latitude, longitude,
+                seen[WEATHER]);
+        if (seen[LOCATION_ID] && seen[UPDATE_REASON]) {
+            return new LocationUpdate((int) locationID, text[UPDATE_REASON], location);
+        }
+        return location;
+    }
+
+    /**
+     * Reads a quoted field name and returns its index in FIELDS. Names without escapes are
+     * compared as bytes, without decoding them.
+     */
+    private int readFieldName() {
+        expect('"');
+        int start = position;
+        while (position < end && in[position] != '"' && in[position] != '\\') {
+            position++;
+        }
+        if (position < end && in[position] == '"') {
+            int length = position - start;
+            position++;
+            for (int i = 0; i < FIELD_BYTES.length; i++) {
+                if (FIELD_BYTES[i].length == length && regionMatches(start, FIELD_BYTES[i])) {
+                    return i;
+                }
+            }
+            throw error("Unknown field " + new String(in, start, Math.min(length, 64), StandardCharsets.UTF_8));
+        }
+
+        position = start - 1;
+        String name = readString(-1);
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(name)) {
+                return i;
+            }
+        }
+        throw error("Unknown field " + (name.length() > 64 ? name.substring(0, 64) : name));
+    }
+
+    private boolean regionMatches(int start, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (in[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a string value. ASCII strings without escapes, the usual case, are copied straight
+     * from the buffer; others are decoded character by character.
+     */
+    private String readString(int field) {
+        if (peek() != '"') {
+            throw error("Expected a string for " + fieldName(field));
+        }
+        position++;
+        int start = position;
+        while (position < end) {
+            int b = in[position];
+            if (b == '"') {
+                int length = position - start;
+                checkLength(field, length);
+                position++;
+                return new String(in, start, length, StandardCharsets.ISO_8859_1);
+            }
+            if (b == '\\' || b < 0) {
+                break;
+            }
+            if (b < 0x20) {
+                throw error("Control character in string");
+            }
+            position++;
+            checkLength(field, position - start);
+        }
+
+        StringBuilder value = new StringBuilder(position - start + 16);
+        value.append(new String(in, start, position - start, StandardCharsets.ISO_8859_1));
+        while (true) {
+            int b = read();
+            if (b == '"') {
+                return value.toString();
+            }
+            if (b == '\\') {
+                readEscape(value);
+            } else if (b < 0x20 && b >= 0) {
+                throw error("Control character in string");
+            } else if (b >= 0) {
+                value.append((char) b);
+            } else {
+                readMultiByte(b, value);
+            }
+            checkLength(field, value.length());
+        }
+    }
+
+    private void readEscape(StringBuilder value) {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                value.append((char) c);
+                break;
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw error("Invalid unicode escape");
+                    }
+                    code = (code << 4) | digit;
+                }
+                value.append((char) code);
+                break;
+            default:
+                throw error("Invalid escape");
+        }
+    }
+
+    /**
+     * Decodes a UTF-8 sequence whose first byte has already been read.
+     */
+    private void readMultiByte(int first, StringBuilder value) {
+        int b = first & 0xff;
+        int count;
+        int codePoint;
+        if ((b & 0xe0) == 0xc0) {
+            count = 1;
+            codePoint = b & 0x1f;
+        } else if ((b & 0xf0) == 0xe0) {
+            count = 2;
+            codePoint = b & 0x0f;
+        } else if ((b & 0xf8) == 0xf0) {
+            count = 3;
+            codePoint = b & 0x07;
+        } else {
+            throw error("Invalid UTF-8");
+        }
+        for (int i = 0; i < count; i++) {
+            int next = read();
+            if ((next & 0xc0) != 0x80) {
+                throw error("Invalid UTF-8");
+            }
+            codePoint = (codePoint << 6) | (next & 0x3f);
+        }
+        if (!Character.isValidCodePoint(codePoint)) {
+            throw error("Invalid UTF-8");
+        }
+        value.appendCodePoint(codePoint);
+    }
+
+    /**
+     * Reads a number, also accepting it as a string like JSONObject.getInt and optDouble do.
+     * null reads as 0, as an optional coordinate that was not given.
+     */
+    private double readNumber(int field, boolean fraction) {
+        if (peek() == 'n') {
+            readLiteral("null");
+            return 0.0;
+        }
+        boolean quoted = peek() == '"';
+        if (quoted) {
+            position++;
+        }
+        int start = position;
+        while (position < end && isNumberChar(in[position])) {
+            position++;
+        }
+        if (position == start || position - start > 32) {
+            throw error("Expected a number for " + fieldName(field));
+        }
+        String number = new String(in, start, position - start, StandardCharsets.ISO_8859_1);
+        if (quoted) {
+            expect('"');
+        }
+        try {
+            if (fraction) {
+                double value = Double.parseDouble(number);
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    throw error("Expected a number for " + fieldName(field));
+                }
+                return value;
+            }
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            throw error("Expected " + (fraction ? "a number" : "an integer") + " for " + fieldName(field));
+        }
+    }
+
+    private static boolean isNumberChar(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    /**
+     * Skips over any JSON value.
+     */
+    private void skipValue(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw error("Too deeply nested");
+        }
+        int c = peek();
+        if (c == '"') {
+            readString(-1);
+        } else if (c == '{' || c == '[') {
+            int close = c == '{' ? '}' : ']';
+            position++;
+            skipWhitespace();
+            if (peek() == close) {
+                position++;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                if (close == '}') {
+                    readString(-1);
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                }
+                skipValue(depth + 1);
+                skipWhitespace();
+                int next = read();
+                if (next == close) {
+                    return;
+                }
+                if (next != ',') {
+                    throw error("Expected , or " + (char) close);
+                }
+            }
+        } else if (c == 't') {
+            readLiteral("true");
+        } else if (c == 'f') {
+            readLiteral("false");
+        } else if (c == 'n') {
+            readLiteral("null");
+        } else {
+            readNumber(WEATHER, true);
+        }
+    }
+
+    private void readLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (read() != literal.charAt(i)) {
+                throw error("Invalid literal");
+            }
+        }
+    }
+
+    private void checkLength(int field, int length) {
+        if (length > maxFieldLength) {
+            throw error(fieldName(field) + " is longer than " + maxFieldLength + " characters");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            byte b = in[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private void expect(char c) {
+        if (read() != c) {
+            throw error("Expected " + c);
+        }
+    }
+
+    private int peek() {
+        if (position >= end) {
+            throw error("Unexpected end of input");
+        }
+        return in[position];
+    }
+
+    private int read() {
+        if (position >= end) {
+            throw error("Unexpected end of input");
+        }
+        return in[position++];
+    }
+
+    private static String fieldName(int field) {
+        return field < 0 ? "String" : FIELDS[field];
+    }
+
+    private JSONException error(String message) {
+        return new JSONException(message + " at " + position);
+    }
+}
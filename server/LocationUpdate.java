@@ -0,0 +1,11 @@
+package com.server;
+
+/**
+ * An edit of an existing location.
+ *
+ * @param locationID the ID of the location to update
+ * @param updateReason the reason given for the update
+ * @param location the new contents of the location
+ */
+public record LocationUpdate(int locationID, String updateReason, Location location) implements LocationCommand {
+}
@@ -2,38 +2,77 @@ package com.server;
 
 import java.io.File;
 import java.io.IOException;
-import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Base64;
-import java.security.SecureRandom;
-import org.apache.commons.codec.digest.Crypt;
-
 public class MessageDatabase {
 
-    private Connection dbConnection = null;
+    private PooledConnection writer = null;
+    private ConnectionPool readPool = null;
+    private WritePipeline writePipeline = null;
     private static MessageDatabase dbInstance = null;
-    private String dbName = "YourDB.db";
+    private static final int WEATHER_WINDOW = 64;
+    private final WeatherService weatherService = WeatherService.getInstance();
+    private final PasswordHasher passwordHasher = PasswordHasher.getInstance();
+    private final TopVisitedIndex topVisitedIndex = TopVisitedIndex.fromConfig();
+    private final GeoIndex geoIndex = GeoIndex.fromConfig();
+    private BloomFilter usernameFilter = null;
+    private VisitBuffer visitBuffer = null;
+    private final AtomicLong listingVersion = new AtomicLong();
+    private final long weatherDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getLong("weather.deadline", 2000));
+    private final int readBatchSize = Math.max(1, ServerConfig.getInt("db.read.batch", 256));
+    private String dbName = ServerConfig.getString("db.name", "YourDB.db");
 
     private String preparedCreateUserTableString = "CREATE TABLE users (username VARCHAR(50) PRIMARY KEY, password VARCHAR(50) NOT NULL, email VARCHAR(50) NOT NULL, userNickname VARCHAR(50) NOT NULL, FOREIGN KEY (userNickname) REFERENCES users(userNickname))";
-    private String preparedCreateMessageTableString = "CREATE TABLE messages (locationID INTEGER PRIMARY KEY, locationName VARCHAR(50) NOT NULL, locationDescription VARCHAR(50) NOT NULL, locationCity VARCHAR(50) NOT NULL, locationCountry VARCHAR(50) NOT NULL, locationStreetAddress VARCHAR(50) NOT NULL, originalPostingTime INT NOT NULL, latitude DOUBLE, longitude DOUBLE, userNickname VARCHAR(50) NOT NULL, updatereason VARCHAR(50), modified INT, timesVisited INT DEFAULT 0, weather INT DEFAULT 0, FOREIGN KEY (userNickname) REFERENCES users(userNickname))";
-    private String preparedSetUsersString = "INSERT INTO users (username, password, email, userNickname) VALUES (?, ?, ?, ?)";
-    private String preparedSetMessageString = "INSERT INTO messages (locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, originalPostingTime, latitude, longitude, userNickname, weather) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-    private String preparedUpdateMessageString = "UPDATE messages SET locationName = ?, locationDescription = ?, locationCity = ?, locationCountry = ?, locationStreetAddress = ?, latitude = ?, longitude = ?, updatereason = ?, modified = ? WHERE locationID = ?";
-    private String preparedUpdateVisitationString = "UPDATE messages SET timesVisited = timesVisited + 1 WHERE locationID = ?";
+    private String preparedCreateMessageTableString = "CREATE TABLE messages (locationID INTEGER PRIMARY KEY, locationName VARCHAR(50) NOT NULL, locationDescription VARCHAR(50) NOT NULL, locationCity VARCHAR(50) NOT NULL, locationCountry VARCHAR(50) NOT NULL, locationStreetAddress VARCHAR(50) NOT NULL, originalPostingTime INT NOT NULL, latitude DOUBLE, longitude DOUBLE, userNickname VARCHAR(50) NOT NULL, updatereason VARCHAR(50), modified INT, timesVisited INT DEFAULT 0, weather INT DEFAULT 0, changeSeq INTEGER, FOREIGN KEY (userNickname) REFERENCES users(userNickname))";
+    private String preparedSetNewUserString = "INSERT INTO users (username, password, email, userNickname) VALUES (?, ?, ?, ?) ON CONFLICT(username) DO NOTHING";
+    private String preparedSetMessageString = "INSERT INTO messages (locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, originalPostingTime, latitude, longitude, userNickname, weather, changeSeq) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, (SELECT COALESCE(MAX(changeSeq), 0) + 1 FROM messages))";
+    private String preparedUpdateMessageString = "UPDATE messages SET locationName = ?, locationDescription = ?, locationCity = ?, locationCountry = ?, locationStreetAddress = ?, latitude = ?, longitude = ?, updatereason = ?, modified = ?, changeSeq = (SELECT COALESCE(MAX(changeSeq), 0) + 1 FROM messages) WHERE locationID = ?";
+    private String preparedUpdateVisitationString = "UPDATE messages SET timesVisited = timesVisited + ? WHERE locationID = ?";
     private String preparedCheckUserString = "SELECT username from users where username = ?";
+    private String preparedGetUsernamesString = "SELECT username FROM users";
+    private String preparedCountUsersString = "SELECT COUNT(*) FROM users";
     private String preparedGetUsersString = "SELECT locationID, locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, originalPostingTime, latitude, longitude, userNickname, updatereason, modified, weather FROM messages";
-    private String preparedAuthenticateString = "SELECT password from users where username = ?";
+    private String preparedGetChangesString = "SELECT locationID, locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, originalPostingTime, latitude, longitude, userNickname, updatereason, modified, weather, changeSeq FROM messages WHERE changeSeq > ? ORDER BY changeSeq LIMIT ?";
+    private String preparedAddChangeSeqString = "ALTER TABLE messages ADD COLUMN changeSeq INTEGER";
+    private String preparedBackfillChangeSeqString = "UPDATE messages SET changeSeq = ordered.seq FROM (SELECT locationID, ROW_NUMBER() OVER (ORDER BY COALESCE(modified, originalPostingTime), locationID) AS seq FROM messages) AS ordered WHERE ordered.locationID = messages.locationID";
+    private String preparedCreateSearchIndexString = "CREATE VIRTUAL TABLE messagesSearch USING fts5(locationName, locationDescription, locationCity, locationStreetAddress, content='messages', content_rowid='locationID', tokenize='unicode61 remove_diacritics 2', prefix='2 3')";
+    private String preparedRebuildSearchIndexString = "INSERT INTO messagesSearch(messagesSearch) VALUES ('rebuild')";
+    private String preparedCheckSearchIndexString = "SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'messagesSearch'";
+    private String[] preparedCreateSearchTriggerStrings = {
+            "CREATE TRIGGER IF NOT EXISTS messagesSearchInsert AFTER INSERT ON messages BEGIN INSERT INTO messagesSearch(rowid, locationName, locationDescription, locationCity, locationStreetAddress) VALUES (new.locationID, new.locationName, new.locationDescription, new.locationCity, new.locationStreetAddress); END",
+            "CREATE TRIGGER IF NOT EXISTS messagesSearchDelete AFTER DELETE ON messages BEGIN INSERT INTO messagesSearch(messagesSearch, rowid, locationName, locationDescription, locationCity, locationStreetAddress) VALUES ('delete', old.locationID, old.locationName, old.locationDescription, old.locationCity, old.locationStreetAddress); END",
+            "CREATE TRIGGER IF NOT EXISTS messagesSearchUpdate AFTER UPDATE OF locationName, locationDescription, locationCity, locationStreetAddress ON messages BEGIN INSERT INTO messagesSearch(messagesSearch, rowid, locationName, locationDescription, locationCity, locationStreetAddress) VALUES ('delete', old.locationID, old.locationName, old.locationDescription, old.locationCity, old.locationStreetAddress); INSERT INTO messagesSearch(rowid, locationName, locationDescription, locationCity, locationStreetAddress) VALUES (new.locationID, new.locationName, new.locationDescription, new.locationCity, new.locationStreetAddress); END" };
+    private String preparedSearchString = "SELECT messages.locationID, locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, originalPostingTime, latitude, longitude, userNickname, updatereason, modified, weather FROM messages JOIN (SELECT rowid AS id, bm25(messagesSearch, 10.0, 1.0, 5.0, 3.0) AS score FROM messagesSearch WHERE messagesSearch MATCH ? ORDER BY score LIMIT ? OFFSET ?) AS hits ON messages.locationID = hits.id ORDER BY hits.score";
+    private String preparedAuthenticateString = "SELECT password, userNickname from users where username = ?";
+    private String preparedRehashPasswordString = "UPDATE users SET password = ? WHERE username = ? AND password = ?";
     private String preparedGetUserNickNameString = "SELECT userNickname from users where username = ?";
-    private String preparedGetMessageStringByID = "SELECT locationID, locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, originalPostingTime, latitude, longitude, userNickname FROM messages WHERE locationID = ?";
-    private String preparedGetTopFiveLocations = "SELECT locationID, locationName, timesVisited FROM messages ORDER BY timesVisited DESC LIMIT 5";
+    private String preparedGetVisitCountsString = "SELECT locationID, locationName, timesVisited, latitude, longitude FROM messages";
+    private String preparedGetMessageRowString = "SELECT locationID, locationName, locationDescription, locationCity, locationCountry, locationStreetAddress, originalPostingTime, latitude, longitude, userNickname, updatereason, modified, weather FROM messages WHERE locationID = ?";
+    private String preparedLastInsertIdString = "SELECT last_insert_rowid()";
+    private String[] preparedCreateMessageIndexStrings = {
+            "CREATE INDEX IF NOT EXISTS messagesByCity ON messages (locationCity)",
+            "CREATE INDEX IF NOT EXISTS messagesByCountry ON messages (locationCountry)",
+            "CREATE INDEX IF NOT EXISTS messagesByNickname ON messages (userNickname)",
+            "CREATE INDEX IF NOT EXISTS messagesByChangeTime ON messages (COALESCE(modified, originalPostingTime))",
+            "CREATE UNIQUE INDEX IF NOT EXISTS messagesByChangeSeq ON messages (changeSeq)" };
 
     public static synchronized MessageDatabase getInstance() {
         if (null == dbInstance) {
@@ -47,12 +86,20 @@ public class MessageDatabase {
             File dbFile = new File(dbName);
             if (dbFile.exists() && !dbFile.isDirectory()) {
                 String database = "jdbc:sqlite:" + dbName;
-                dbConnection = DriverManager.getConnection(database);
+                writer = new PooledConnection(DriverManager.getConnection(database));
+                configureWriteConnection();
             } else {
                 init();
             }
+            addChangeSeqColumn();
+            createMessageIndexes();
+            createSearchIndex();
+            openReadPool();
+            loadIndexes();
+            writePipeline = WritePipeline.fromConfig(writer);
+            visitBuffer = VisitBuffer.fromConfig(this::writeVisits);
         } catch (SQLException e) {
-            e.getMessage();    
+            e.printStackTrace();
         }
     }
 
@@ -65,8 +112,9 @@ public class MessageDatabase {
     private boolean init() throws SQLException {
         String database = "jdbc:sqlite:" + dbName;
         try {
-            dbConnection = DriverManager.getConnection(database);
-            if (null != dbConnection) {
+            writer = new PooledConnection(DriverManager.getConnection(database));
+            if (null != writer) {
+                configureWriteConnection();
                 createUserTable();
                 createMessageTable();
                 return true;
@@ -78,21 +126,63 @@ public class MessageDatabase {
     }
 
     /**
-     * Closes the database connection.
+     * Switches the database to WAL mode so that readers are not blocked by the writer.
+     * The journal mode is stored in the database file, the other settings are per connection.
+     *
+     * @throws SQLException if the settings cannot be applied
      */
-    private void close() {
-        try {
-            if (null != dbConnection) {
-                dbConnection.close();
+    private void configureWriteConnection() throws SQLException {
+        try (Statement statement = writer.getConnection().createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA busy_timeout = 5000");
+        }
+    }
+
+    /**
+     * Opens the pool of read connections, one per core unless set with -Ddb.readers.
+     *
+     * @throws SQLException if a connection cannot be opened
+     */
+    private void openReadPool() throws SQLException {
+        int readers = ServerConfig.getInt("db.readers", Runtime.getRuntime().availableProcessors());
+        readPool = new ConnectionPool("jdbc:sqlite:" + dbName, Math.max(1, readers));
+        Metrics.register("database", () -> {
+            JSONObject metrics = new JSONObject();
+            metrics.put("readPool", readPool.metrics());
+            metrics.put("writerStatementCacheHits", writer.getHits());
+            metrics.put("writerStatementCacheMisses", writer.getMisses());
+            if (null != writePipeline) {
+                metrics.put("writePipeline", writePipeline.metrics());
             }
-        } catch (SQLException e) {
-          e.getMessage();
+            if (null != visitBuffer) {
+                metrics.put("visits", visitBuffer.metrics());
+            }
+            return metrics;
+        });
+    }
+
+    /**
+     * Writes the pending visits, waits for the queued writes and closes the database connections.
+     */
+    public void close() {
+        if (null != visitBuffer) {
+            visitBuffer.close();
+        }
+        if (null != writePipeline) {
+            writePipeline.close();
+        }
+        if (null != readPool) {
+            readPool.close();
+        }
+        if (null != writer) {
+            writer.close();
         }
     }
 
     private void createUserTable() throws SQLException {
 
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedCreateUserTableString);
+        PreparedStatement preparedStatement = writer.getConnection().prepareStatement(preparedCreateUserTableString);
 
         preparedStatement.executeUpdate();
         preparedStatement.close();
@@ -100,250 +190,819 @@ public class MessageDatabase {
 
     private void createMessageTable() throws SQLException {
 
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedCreateMessageTableString);
+        PreparedStatement preparedStatement = writer.getConnection().prepareStatement(preparedCreateMessageTableString);
 
         preparedStatement.executeUpdate();
         preparedStatement.close();
     }
 
 
-    public synchronized boolean setUser(JSONObject user) throws SQLException {
-
-        if (checkIfUserExists(user.getString("username"))) {
-            return false;
+    /**
+     * Adds the changeSeq column to databases created before the change feed. Existing locations
+     * are numbered in the order they were last changed.
+     *
+     * @throws SQLException if the column cannot be added
+     */
+    private void addChangeSeqColumn() throws SQLException {
+        try (Statement statement = writer.getConnection().createStatement()) {
+            boolean hasChangeSeq = false;
+            ResultSet rs = statement.executeQuery("PRAGMA table_info(messages)");
+            while (rs.next()) {
+                if ("changeSeq".equalsIgnoreCase(rs.getString("name"))) {
+                    hasChangeSeq = true;
+                }
+            }
+            rs.close();
+            if (!hasChangeSeq) {
+                statement.executeUpdate(preparedAddChangeSeqString);
+                statement.executeUpdate(preparedBackfillChangeSeqString);
+            }
         }
+    }
 
-        String password = user.getString("password");
-        String encryptedPassword = encryptPassword(password);
+    /**
+     * Creates the indexes used by the filters of the message listing.
+     * Run on every start so that databases created before the indexes existed get them too.
+     *
+     * @throws SQLException if an index cannot be created
+     */
+    private void createMessageIndexes() throws SQLException {
+        try (Statement statement = writer.getConnection().createStatement()) {
+            for (String createIndex : preparedCreateMessageIndexStrings) {
+                statement.executeUpdate(createIndex);
+            }
+        }
+    }
 
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedSetUsersString);
-        preparedStatement.setString(1, user.getString("username"));
-        preparedStatement.setString(2, encryptedPassword);
-        preparedStatement.setString(3, user.getString("email"));
-        preparedStatement.setString(4, user.getString("userNickname"));
+    /**
+     * Creates the full-text index of the location names, descriptions, cities and street
+     * addresses, and the triggers that keep it up to date with every write to the messages
+     * table. A database created before the index existed is indexed once on startup.
+     *
+     * @throws SQLException if the index cannot be created
+     */
+    private void createSearchIndex() throws SQLException {
+        try (Statement statement = writer.getConnection().createStatement()) {
+            ResultSet rs = statement.executeQuery(preparedCheckSearchIndexString);
+            boolean exists = rs.next();
+            rs.close();
+            if (!exists) {
+                statement.executeUpdate(preparedCreateSearchIndexString);
+                statement.executeUpdate(preparedRebuildSearchIndexString);
+            }
+            for (String createTrigger : preparedCreateSearchTriggerStrings) {
+                statement.executeUpdate(createTrigger);
+            }
+        }
+    }
 
-        preparedStatement.executeUpdate();
-        preparedStatement.close();
+    /**
+     * Fills the top visited index with the visit counts and the geo index with the coordinates
+     * stored in the database, in one pass over the locations, and the username filter with the
+     * registered usernames. The filter is sized for -Dauth.users.expected users (default 100000)
+     * or twice the registered ones, whichever is more.
+     *
+     * @throws SQLException if the locations or users cannot be read
+     */
+    private void loadIndexes() throws SQLException {
+        PooledConnection connection = readPool.acquire();
+        try {
+            ResultSet rs = connection.prepare(preparedGetVisitCountsString).executeQuery();
+            while (rs.next()) {
+                int locationID = rs.getInt("locationID");
+                topVisitedIndex.add(locationID, rs.getString("locationName"), rs.getLong("timesVisited"));
+                geoIndex.put(locationID, rs.getDouble("latitude"), rs.getDouble("longitude"));
+            }
+            rs.close();
 
-        return true;
+            rs = connection.prepare(preparedCountUsersString).executeQuery();
+            long users = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            usernameFilter = new BloomFilter(Math.max(ServerConfig.getLong("auth.users.expected", 100000), users * 2), 0.01);
+            rs = connection.prepare(preparedGetUsernamesString).executeQuery();
+            while (rs.next()) {
+                usernameFilter.add(rs.getString("username"));
+            }
+            rs.close();
+            Metrics.register("usernameFilter", usernameFilter::metrics);
+        } finally {
+            readPool.release(connection);
+        }
     }
 
-    public synchronized boolean setMessage(JSONObject message) throws SQLException {
+    public TopVisitedIndex getTopVisitedIndex() {
+        return topVisitedIndex;
+    }
 
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedSetMessageString);
+    public GeoIndex getGeoIndex() {
+        return geoIndex;
+    }
 
-        preparedStatement.setString(1, message.getString("locationName"));
-        preparedStatement.setString(2, message.getString("locationDescription"));
-        preparedStatement.setString(3, message.getString("locationCity"));
-        preparedStatement.setString(4, message.getString("locationCountry"));
-        preparedStatement.setString(5, message.getString("locationStreetAddress"));
-        preparedStatement.setLong(6, message.getLong("originalPostingTime"));
-        preparedStatement.setDouble(7, message.getDouble("latitude"));
-        preparedStatement.setDouble(8, message.getDouble("longitude"));
-        preparedStatement.setString(9, message.getString("userNickname"));
-        preparedStatement.setInt(10, message.getInt("weather"));
+    /**
+     * Returns the version of the location listing. It changes after every committed write
+     * that changes the listing; visits do not, the listing has no visit counts.
+     *
+     * @return the current listing version
+     */
+    public long getListingVersion() {
+        return listingVersion.get();
+    }
 
-        preparedStatement.executeUpdate();
-        preparedStatement.close();
-        return true;
+    /**
+     * Waits until the listing version is no longer the given one, or until the timeout.
+     *
+     * @param version the version the caller has seen
+     * @param timeoutMillis the longest time to wait
+     * @return the current listing version
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public long awaitListingChange(long version, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (listingVersion) {
+            long remaining;
+            while (listingVersion.get() == version
+                    && (remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                listingVersion.wait(remaining);
+            }
+            return listingVersion.get();
+        }
     }
 
-    public synchronized boolean updateMessage(JSONObject updateMessage) throws SQLException {
+    /**
+     * Moves the listing to a new version after a committed write and wakes up the change feed.
+     */
+    private void listingChanged() {
+        synchronized (listingVersion) {
+            listingVersion.incrementAndGet();
+            listingVersion.notifyAll();
+        }
+    }
 
-        int locationID = updateMessage.getInt("locationID");
+    /**
+     * Registers a user. A username that the username filter has never seen is certainly free,
+     * so the database is only asked before hashing the password when the filter cannot tell;
+     * the insert itself decides, and inserts nothing if another registration took the
+     * username first.
+     *
+     * @param user the user to register
+     * @return false if the username is taken, the password hashing queue is full or hashing fails
+     * @throws SQLException if the user cannot be stored
+     */
+    public boolean setUser(User user) throws SQLException {
 
-        if (!checkIfMessageExists(locationID)) {
+        String username = user.username();
+        if (usernameFilter.mightContain(username) && checkIfUserExists(username)) {
             return false;
         }
 
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedUpdateMessageString);
-        preparedStatement.setString(1, updateMessage.getString("locationName"));
-        preparedStatement.setString(2, updateMessage.getString("locationDescription"));
-        preparedStatement.setString(3, updateMessage.getString("locationCity"));
-        preparedStatement.setString(4, updateMessage.getString("locationCountry"));
-        preparedStatement.setString(5, updateMessage.getString("locationStreetAddress"));
-        preparedStatement.setDouble(6, updateMessage.getDouble("latitude"));
-        preparedStatement.setDouble(7, updateMessage.getDouble("longitude"));
-        preparedStatement.setString(8, updateMessage.getString("updatereason"));
-        preparedStatement.setLong(9, updateMessage.getLong("modified"));
-        preparedStatement.setInt(10, locationID);
+        String encryptedPassword;
+        try {
+            encryptedPassword = passwordHasher.hash(user.password());
+        } catch (RejectedExecutionException e) {
+            return false;
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            return false;
+        }
 
-        preparedStatement.executeUpdate();
-        preparedStatement.close();
+        int inserted = writePipeline.execute(writer -> {
+            PreparedStatement preparedStatement = writer.prepare(preparedSetNewUserString);
+            preparedStatement.setString(1, username);
+            preparedStatement.setString(2, encryptedPassword);
+            preparedStatement.setString(3, user.email());
+            preparedStatement.setString(4, user.userNickname());
+
+            // Nothing is inserted if the username is taken.
+            return preparedStatement.executeUpdate();
+        });
+        if (inserted == 0) {
+            return false;
+        }
+        usernameFilter.add(username);
         return true;
     }
 
-    public synchronized boolean updateVisitation(JSONObject visitMessage) throws SQLException {
-
-        int locationID = visitMessage.getInt("locationID");
+    /**
+     * Registers a chunk of users in one transaction. The passwords are hashed in parallel on the
+     * password hashing pool before the transaction starts.
+     *
+     * @param users the users to register
+     * @return for every user, true if it was registered and false if the username was taken
+     * @throws SQLException if the transaction fails
+     * @throws RejectedExecutionException if the password hashing queue is full
+     * @throws IllegalStateException if hashing a password fails
+     */
+    public boolean[] setUsers(List<User> users) throws SQLException {
+        List<CompletableFuture<String>> hashes = new ArrayList<>(users.size());
+        for (User user : users) {
+            hashes.add(passwordHasher.hashAsync(user.password()));
+        }
+        String[] encryptedPasswords = new String[users.size()];
+        try {
+            for (int i = 0; i < encryptedPasswords.length; i++) {
+                encryptedPasswords[i] = hashes.get(i).join();
+            }
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
 
-        if (!checkIfMessageExists(locationID)) {
-            return false;
+        boolean[] added = writePipeline.execute(writer -> {
+            boolean[] results = new boolean[users.size()];
+            PreparedStatement preparedStatement = writer.prepare(preparedSetNewUserString);
+            for (int i = 0; i < results.length; i++) {
+                User user = users.get(i);
+                preparedStatement.setString(1, user.username());
+                preparedStatement.setString(2, encryptedPasswords[i]);
+                preparedStatement.setString(3, user.email());
+                preparedStatement.setString(4, user.userNickname());
+                // Nothing is inserted if the username is taken.
+                results[i] = preparedStatement.executeUpdate() == 1;
+            }
+            return results;
+        });
+        for (int i = 0; i < added.length; i++) {
+            if (added[i]) {
+                usernameFilter.add(users.get(i).username());
+            }
         }
+        return added;
+    }
 
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedUpdateVisitationString);
-        preparedStatement.setInt(1, locationID);
+    /**
+     * Stores a chunk of new locations in one transaction.
+     *
+     * @param locations the locations to store
+     * @param originalPostingTimes the posting times of the locations in epoch milliseconds
+     * @param userNickname the nickname of the poster
+     * @return the locationIDs of the stored locations, in the same order
+     * @throws SQLException if the transaction fails
+     */
+    public int[] setMessages(List<Location> locations, long[] originalPostingTimes, String userNickname)
+            throws SQLException {
+
+        int[] locationIDs = writePipeline.execute(writer -> {
+            int[] ids = new int[locations.size()];
+            PreparedStatement preparedStatement = writer.prepare(preparedSetMessageString);
+            PreparedStatement lastInsertId = writer.prepare(preparedLastInsertIdString);
+            for (int i = 0; i < ids.length; i++) {
+                Location location = locations.get(i);
+                preparedStatement.setString(1, location.locationName());
+                preparedStatement.setString(2, location.locationDescription());
+                preparedStatement.setString(3, location.locationCity());
+                preparedStatement.setString(4, location.locationCountry());
+                preparedStatement.setString(5, location.locationStreetAddress());
+                preparedStatement.setLong(6, originalPostingTimes[i]);
+                preparedStatement.setDouble(7, location.latitude());
+                preparedStatement.setDouble(8, location.longitude());
+                preparedStatement.setString(9, userNickname);
+                preparedStatement.setInt(10, location.weather() ? 1 : 0);
+                preparedStatement.executeUpdate();
+
+                ResultSet rs = lastInsertId.executeQuery();
+                rs.next();
+                ids[i] = rs.getInt(1);
+                rs.close();
+            }
+            return ids;
+        });
+        for (int i = 0; i < locationIDs.length; i++) {
+            Location location = locations.get(i);
+            topVisitedIndex.add(locationIDs[i], location.locationName(), 0);
+            geoIndex.put(locationIDs[i], location.latitude(), location.longitude());
+        }
+        listingChanged();
+        return locationIDs;
+    }
 
-        preparedStatement.executeUpdate();
-        preparedStatement.close();
+    /**
+     * Stores a new location.
+     *
+     * @param location the location to store
+     * @param originalPostingTime the posting time of the location in epoch milliseconds
+     * @param userNickname the nickname of the poster
+     * @return true when the location has been stored
+     * @throws SQLException if the insert fails
+     */
+    public boolean setMessage(Location location, long originalPostingTime, String userNickname) throws SQLException {
+
+        int locationID = writePipeline.execute(writer -> {
+            PreparedStatement preparedStatement = writer.prepare(preparedSetMessageString);
+
+            preparedStatement.setString(1, location.locationName());
+            preparedStatement.setString(2, location.locationDescription());
+            preparedStatement.setString(3, location.locationCity());
+            preparedStatement.setString(4, location.locationCountry());
+            preparedStatement.setString(5, location.locationStreetAddress());
+            preparedStatement.setLong(6, originalPostingTime);
+            preparedStatement.setDouble(7, location.latitude());
+            preparedStatement.setDouble(8, location.longitude());
+            preparedStatement.setString(9, userNickname);
+            preparedStatement.setInt(10, location.weather() ? 1 : 0);
+
+            preparedStatement.executeUpdate();
+
+            ResultSet rs = writer.prepare(preparedLastInsertIdString).executeQuery();
+            rs.next();
+            int id = rs.getInt(1);
+            rs.close();
+            return id;
+        });
+        topVisitedIndex.add(locationID, location.locationName(), 0);
+        geoIndex.put(locationID, location.latitude(), location.longitude());
+        listingChanged();
         return true;
     }
 
-    public synchronized JSONArray getMessages() throws SQLException, JSONException, IOException {
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedGetUsersString);
-        ResultSet rs = preparedStatement.executeQuery();
-        JSONArray messageArray = new JSONArray();
-
-        while (rs.next()) {
-            JSONObject message = new JSONObject();
-
-            long epochTime = rs.getLong("originalPostingTime");
-            String zonedTime = TimeTools.convertEpochToZoneTime(epochTime);
-
-            message.put("locationID", rs.getInt("locationID"));
-            message.put("locationName", rs.getString("locationName"));
-            message.put("locationDescription", rs.getString("locationDescription"));
-            message.put("locationCity", rs.getString("locationCity"));
-            message.put("locationCountry", rs.getString("locationCountry"));
-            message.put("locationStreetAddress", rs.getString("locationStreetAddress"));
-            message.put("originalPoster", rs.getString("userNickname"));
-            message.put("originalPostingTime", zonedTime);
+    /**
+     * Updates an existing location.
+     *
+     * @param update the ID of the location, its new contents and the reason for the update
+     * @param modified the time of the update in epoch milliseconds
+     * @return false if the location does not exist
+     * @throws SQLException if the update fails
+     */
+    public boolean updateMessage(LocationUpdate update, long modified) throws SQLException {
+
+        int locationID = update.locationID();
+        Location location = update.location();
+
+        int updated = writePipeline.execute(writer -> {
+            PreparedStatement preparedStatement = writer.prepare(preparedUpdateMessageString);
+            preparedStatement.setString(1, location.locationName());
+            preparedStatement.setString(2, location.locationDescription());
+            preparedStatement.setString(3, location.locationCity());
+            preparedStatement.setString(4, location.locationCountry());
+            preparedStatement.setString(5, location.locationStreetAddress());
+            preparedStatement.setDouble(6, location.latitude());
+            preparedStatement.setDouble(7, location.longitude());
+            preparedStatement.setString(8, update.updateReason());
+            preparedStatement.setLong(9, modified);
+            preparedStatement.setInt(10, locationID);
+
+            // No row is updated if the location does not exist.
+            return preparedStatement.executeUpdate();
+        });
+        if (updated == 0) {
+            return false;
+        }
+        topVisitedIndex.rename(locationID, location.locationName());
+        geoIndex.put(locationID, location.latitude(), location.longitude());
+        listingChanged();
+        return true;
+    }
 
-            if (rs.getDouble("latitude") != 0.0 && rs.getDouble("longitude") != 0.0) {
-                Double latitude = rs.getDouble("latitude");
-                Double longitude = rs.getDouble("longitude");
+    /**
+     * Counts a visit to a location. The top visited index knows every location, so it
+     * doubles as the existence check, and the visit itself reaches the database with
+     * the next flush of the visit buffer.
+     *
+     * @param visit the visit with the locationID
+     * @return false if the location does not exist
+     */
+    public boolean updateVisitation(Visit visit) {
 
-                message.put("latitude", latitude);
-                message.put("longitude", longitude);
+        int locationID = visit.locationID();
 
-                if (rs.getInt("weather") != 0) {
-                    WeatherClient weatherClient = new WeatherClient();
-                    int weather = weatherClient.getWeather(latitude, longitude);
-                    message.put("weather", weather);
-                }   
+        if (!topVisitedIndex.visit(locationID)) {
+            return false;
+        }
+        visitBuffer.add(locationID);
+        return true;
+    }
 
+    /**
+     * Adds the buffered visit counts to the database as one batch of the write pipeline.
+     *
+     * @param visits the number of new visits by locationID
+     * @throws SQLException if the update fails, in which case nothing is written
+     */
+    private void writeVisits(Map<Integer, Long> visits) throws SQLException {
+        writePipeline.execute(writer -> {
+            PreparedStatement preparedStatement = writer.prepare(preparedUpdateVisitationString);
+            for (Map.Entry<Integer, Long> visit : visits.entrySet()) {
+                preparedStatement.setLong(1, visit.getValue());
+                preparedStatement.setInt(2, visit.getKey());
+                preparedStatement.addBatch();
             }
+            return preparedStatement.executeBatch();
+        });
+    }
 
-            if (rs.getString("updatereason") != null) {
-                message.put("updatereason", rs.getString("updatereason"));
-                long modifiedTime = rs.getLong("modified");
-                String zonedModifiedTime = TimeTools.convertEpochToZoneTime(modifiedTime);
-                message.put("modified", zonedModifiedTime);
+    /**
+     * Writes the locations matching the query as a JSON array.
+     * Rows are read -Ddb.read.batch (default 256) at a time, and the read connection is back in
+     * the pool before the rows of a batch wait for their weather or are written to the client,
+     * so a slow client or weather service does not hold a reader. The weather lookups run in
+     * parallel for a small window of rows. A row whose weather is not available by
+     * -Dweather.deadline milliseconds after the start of the listing is written without it.
+     * If no location matches, nothing is written, not even the brackets of the array.
+     *
+     * @param query the filters and paging of the listing
+     * @param json the writer the array is written to
+     * @return the number of locations written
+     * @throws SQLException if the query fails
+     * @throws IOException if writing the response fails
+     */
+    public int writeMessages(MessageQuery query, JsonStreamWriter json) throws SQLException, JSONException, IOException {
+        long deadline = System.nanoTime() + weatherDeadlineNanos;
+        ArrayDeque<MessageRow> pending = new ArrayDeque<>();
+        int count = 0;
+        long after = query.getAfter();
+        int remaining = query.getLimit();
+
+        while (true) {
+            int batchSize = remaining > 0 ? Math.min(readBatchSize, remaining) : readBatchSize;
+            List<MessageRow> rows = readMessages(query.page(after, batchSize));
+            for (MessageRow row : rows) {
+                if (row.hasCoordinates() && row.weatherRequested) {
+                    row.weather = weatherService.getTemperature(row.latitude, row.longitude);
+                }
+                pending.addLast(row);
+
+                // Weather lookups of the next rows run while earlier rows wait for theirs.
+                while (!pending.isEmpty() && (pending.size() >= WEATHER_WINDOW || pending.peekFirst().isReady())) {
+                    if (count++ == 0) {
+                        json.beginArray();
+                    }
+                    pending.pollFirst().write(json, deadline);
+                }
+            }
+            if (rows.size() < batchSize) {
+                break;
             }
+            after = rows.get(rows.size() - 1).locationID;
+            if (remaining > 0) {
+                remaining -= rows.size();
+                if (remaining == 0) {
+                    break;
+                }
+            }
+        }
 
-            messageArray.put(message);
+        while (!pending.isEmpty()) {
+            if (count++ == 0) {
+                json.beginArray();
+            }
+            pending.pollFirst().write(json, deadline);
         }
 
-        rs.close();
-        preparedStatement.close();
-        return messageArray;
+        if (count > 0) {
+            json.endArray();
+        }
+        return count;
     }
 
-    public synchronized JSONArray getTopFiveLocations() throws SQLException, JSONException, IOException {
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedGetTopFiveLocations);
-        ResultSet rs = preparedStatement.executeQuery();
-        JSONArray messageArray = new JSONArray();
+    /**
+     * Reads one batch of the listing into memory, holding a read connection only for the query.
+     */
+    private List<MessageRow> readMessages(MessageQuery batch) throws SQLException {
+        List<MessageRow> rows = new ArrayList<>(batch.getLimit());
+        PooledConnection connection = readPool.acquire();
+        try {
+            PreparedStatement preparedStatement = connection.prepare(preparedGetUsersString + batch.toSql());
+            batch.bind(preparedStatement);
+            ResultSet rs = preparedStatement.executeQuery();
+            try {
+                while (rs.next()) {
+                    rows.add(new MessageRow(rs));
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            readPool.release(connection);
+        }
+        return rows;
+    }
 
-        while (rs.next()) {
-            JSONObject message = new JSONObject();
+    /**
+     * Writes the locations changed after the given change sequence number in change order, each
+     * as the same object as in the listing with its changeSeq, without weather. A location that
+     * has changed several times appears once, at its latest change. The batch is read into memory
+     * and the read connection is back in the pool before anything is written, so a slow feed
+     * client does not hold a reader.
+     *
+     * @param afterSeq the last change sequence number the client has seen
+     * @param limit the most locations to write
+     * @param json the writer the locations are written to
+     * @param format the framing of each location
+     * @return the change sequence number of the last location written, or afterSeq if none
+     * @throws SQLException if the query fails
+     * @throws IOException if writing the response fails
+     */
+    public long writeChanges(long afterSeq, int limit, JsonStreamWriter json, ChangeFeedHandler.Format format)
+            throws SQLException, IOException {
+        List<MessageRow> rows = new ArrayList<>(Math.min(limit, 1024));
+        PooledConnection connection = readPool.acquire();
+        try {
+            PreparedStatement preparedStatement = connection.prepare(preparedGetChangesString);
+            preparedStatement.setLong(1, afterSeq);
+            preparedStatement.setInt(2, limit);
+            ResultSet rs = preparedStatement.executeQuery();
+            try {
+                while (rs.next()) {
+                    MessageRow row = new MessageRow(rs);
+                    row.changeSeq = rs.getLong("changeSeq");
+                    rows.add(row);
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            readPool.release(connection);
+        }
 
-            message.put("locationID", rs.getInt("locationID"));
-            message.put("locationName", rs.getString("locationName"));
-            message.put("timesVisited", rs.getInt("timesVisited"));
+        long lastSeq = afterSeq;
+        for (MessageRow row : rows) {
+            lastSeq = row.changeSeq;
+            json.raw(format.before(lastSeq));
+            row.write(json, 0);
+            json.raw(format.after());
+        }
+        return lastSeq;
+    }
 
-            messageArray.put(message);
+    /**
+     * Writes the locations matching a full-text search as a JSON array, best match first, each as
+     * the same object as in the listing, without weather. Matches in the name weigh the most,
+     * then the city, the street address and the description.
+     *
+     * @param query the search terms and the page of results
+     * @param json the writer the array is written to
+     * @return the number of locations written
+     * @throws SQLException if the query fails
+     * @throws IOException if writing the response fails
+     */
+    public int writeSearch(SearchQuery query, JsonStreamWriter json) throws SQLException, IOException {
+        int count = 0;
+        PooledConnection connection = readPool.acquire();
+        try {
+            PreparedStatement preparedStatement = connection.prepare(preparedSearchString);
+            preparedStatement.setString(1, query.toMatch());
+            preparedStatement.setInt(2, query.getLimit());
+            preparedStatement.setInt(3, query.getOffset());
+            ResultSet rs = preparedStatement.executeQuery();
+            try {
+                while (rs.next()) {
+                    if (count++ == 0) {
+                        json.beginArray();
+                    }
+                    new MessageRow(rs).write(json, 0);
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            readPool.release(connection);
+        }
+        if (count > 0) {
+            json.endArray();
         }
+        return count;
+    }
 
-        rs.close();
-        preparedStatement.close();
-        return messageArray;
+    /**
+     * Writes the locations found by a nearby search as a JSON array in the order of the hits,
+     * each as the same object as in the listing with its distance in metres, without weather.
+     * Locations deleted since the search are left out.
+     *
+     * @param hits the locations found in the geo index
+     * @param json the writer the array is written to
+     * @return the number of locations written
+     * @throws SQLException if the query fails
+     * @throws IOException if writing the response fails
+     */
+    public int writeNearby(List<GeoIndex.Hit> hits, JsonStreamWriter json) throws SQLException, IOException {
+        int count = 0;
+        PooledConnection connection = readPool.acquire();
+        try {
+            PreparedStatement preparedStatement = connection.prepare(preparedGetMessageRowString);
+            for (GeoIndex.Hit hit : hits) {
+                preparedStatement.setInt(1, hit.locationID());
+                ResultSet rs = preparedStatement.executeQuery();
+                try {
+                    if (rs.next()) {
+                        MessageRow row = new MessageRow(rs);
+                        row.distance = hit.distance();
+                        if (count++ == 0) {
+                            json.beginArray();
+                        }
+                        row.write(json, 0);
+                    }
+                } finally {
+                    rs.close();
+                }
+            }
+        } finally {
+            readPool.release(connection);
+        }
+        if (count > 0) {
+            json.endArray();
+        }
+        return count;
     }
 
-    public synchronized boolean checkIfUserExists(String givenUserName) throws SQLException {
+    /**
+     * One row of the message listing waiting for its weather lookup.
+     */
+    private final class MessageRow {
+        final int locationID;
+        final String locationName;
+        final String locationDescription;
+        final String locationCity;
+        final String locationCountry;
+        final String locationStreetAddress;
+        final String userNickname;
+        final long originalPostingTime;
+        final double latitude;
+        final double longitude;
+        final boolean weatherRequested;
+        final String updateReason;
+        final long modified;
+        CompletableFuture<Integer> weather = null;
+        long changeSeq = 0;
+        double distance = -1;
+
+        MessageRow(ResultSet rs) throws SQLException {
+            locationID = rs.getInt("locationID");
+            locationName = rs.getString("locationName");
+            locationDescription = rs.getString("locationDescription");
+            locationCity = rs.getString("locationCity");
+            locationCountry = rs.getString("locationCountry");
+            locationStreetAddress = rs.getString("locationStreetAddress");
+            userNickname = rs.getString("userNickname");
+            originalPostingTime = rs.getLong("originalPostingTime");
+            latitude = rs.getDouble("latitude");
+            longitude = rs.getDouble("longitude");
+            weatherRequested = rs.getInt("weather") != 0;
+            updateReason = rs.getString("updatereason");
+            modified = rs.getLong("modified");
+        }
 
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedCheckUserString);
-        preparedStatement.setString(1, givenUserName);
+        boolean hasCoordinates() {
+            return latitude != 0.0 && longitude != 0.0;
+        }
 
-        ResultSet rs = preparedStatement.executeQuery();
-        boolean userExists = rs.next();
-        rs.close();
-        preparedStatement.close();
-        return userExists;
-    }
+        boolean isReady() {
+            return weather == null || weather.isDone();
+        }
 
-    public synchronized boolean checkIfMessageExists(int locationID) throws SQLException {
+        /**
+         * Writes the row, waiting for the weather until the deadline of the request.
+         * The weather is left out if the lookup failed or did not finish in time.
+         */
+        void write(JsonStreamWriter json, long deadline) throws IOException {
+            json.beginObject();
+            json.field("locationID", locationID);
+            json.field("locationName", locationName);
+            json.field("locationDescription", locationDescription);
+            json.field("locationCity", locationCity);
+            json.field("locationCountry", locationCountry);
+            json.field("locationStreetAddress", locationStreetAddress);
+            json.field("originalPoster", userNickname);
+            json.timeField("originalPostingTime", originalPostingTime);
+
+            if (hasCoordinates()) {
+                json.field("latitude", latitude);
+                json.field("longitude", longitude);
+
+                Integer temperature = awaitWeather(deadline);
+                if (temperature != null) {
+                    json.field("weather", temperature);
+                }
+            }
 
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedGetMessageStringByID);
-        preparedStatement.setInt(1, locationID);
+            if (updateReason != null) {
+                json.field("updatereason", updateReason);
+                json.timeField("modified", modified);
+            }
+            if (changeSeq > 0) {
+                json.field("changeSeq", changeSeq);
+            }
+            if (distance >= 0) {
+                json.field("distance", Math.round(distance * 10) / 10.0);
+            }
+            json.endObject();
+        }
 
-        ResultSet rs = preparedStatement.executeQuery();
-        boolean messageExists = rs.next();
-        rs.close();
-        preparedStatement.close();
-        return messageExists;
+        private Integer awaitWeather(long deadline) {
+            if (weather == null) {
+                return null;
+            }
+            try {
+                return weather.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                weatherService.recordTimeout();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
     }
 
-    public synchronized boolean authenticateUser(String giveUserName, String givenPlainPassword) throws SQLException {
-
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedAuthenticateString);
-        preparedStatement.setString(1, giveUserName);
+    public boolean checkIfUserExists(String givenUserName) throws SQLException {
+        PooledConnection connection = readPool.acquire();
+        try {
+            PreparedStatement preparedStatement = connection.prepare(preparedCheckUserString);
+            preparedStatement.setString(1, givenUserName);
 
-        ResultSet rs = preparedStatement.executeQuery();
-        boolean userExists = rs.next();
-        if (!userExists) {
+            ResultSet rs = preparedStatement.executeQuery();
+            boolean userExists = rs.next();
             rs.close();
-            preparedStatement.close();
-            return false;
+            return userExists;
+        } finally {
+            readPool.release(connection);
         }
-        String cryptedPasswordDB = rs.getString("password");
-        rs.close();
-        preparedStatement.close();
-        return decryptPassword(givenPlainPassword, cryptedPasswordDB);
     }
 
-    public synchronized String getUserNickname(String username) throws SQLException {
-        PreparedStatement preparedStatement = dbConnection.prepareStatement(preparedGetUserNickNameString);
-        preparedStatement.setString(1, username);
-
-        String userNickname = "";
+    /**
+     * Checks the password of a user. The stored hash is read first and checked on the password
+     * hashing pool after the connection is back in the pool. A hash in an older or weaker format
+     * is replaced in the background with one in the configured format.
+     *
+     * The nickname of the user is read with the hash, so the caller does not need to look it up.
+     *
+     * @param giveUserName the username of the user
+     * @param givenPlainPassword the plain password given by the user
+     * @return the nickname of the user, or null if the user does not exist or the password does not match
+     * @throws SQLException if the hash cannot be read
+     */
+    public String authenticateUser(String giveUserName, String givenPlainPassword) throws SQLException {
 
-        ResultSet rs = preparedStatement.executeQuery();
-        if (rs.next()) {
+        String cryptedPasswordDB;
+        String userNickname;
+        PooledConnection connection = readPool.acquire();
+        try {
+            PreparedStatement preparedStatement = connection.prepare(preparedAuthenticateString);
+            preparedStatement.setString(1, giveUserName);
+
+            ResultSet rs = preparedStatement.executeQuery();
+            boolean userExists = rs.next();
+            if (!userExists) {
+                rs.close();
+                return null;
+            }
+            cryptedPasswordDB = rs.getString("password");
             userNickname = rs.getString("userNickname");
+            rs.close();
+        } finally {
+            readPool.release(connection);
+        }
+
+        if (!passwordHasher.verify(givenPlainPassword, cryptedPasswordDB)) {
+            return null;
+        }
+        if (passwordHasher.needsRehash(cryptedPasswordDB)) {
+            rehashPassword(giveUserName, givenPlainPassword, cryptedPasswordDB);
         }
-        rs.close();
-        preparedStatement.close();
         return userNickname;
     }
 
     /**
-     * Encrypts the given plain password using a randomly generated salt and the Crypt.crypt() method.
-     * 
-     * @param givenPlainPassword the plain password to be encrypted
-     * @return the encrypted password
+     * Replaces a stored password hash with a new one in the configured format, without making
+     * the login wait for it. The row is only changed if it still has the old hash, so a password
+     * changed in the meantime is not overwritten. A failed rehash is retried on the next login.
      */
-    private String encryptPassword(String givenPlainPassword) {
-        SecureRandom secureRandom = new SecureRandom();
-
-        byte bytes[] = new byte[13];
-        secureRandom.nextBytes(bytes);
-        String saltBytes = new String(Base64.getEncoder().encode(bytes));
-        String salt = "$6$" + saltBytes;
+    private void rehashPassword(String username, String plainPassword, String oldHash) {
+        try {
+            passwordHasher.hashAsync(plainPassword).thenAccept(newHash -> {
+                try {
+                    writePipeline.submit(writer -> {
+                        PreparedStatement preparedStatement = writer.prepare(preparedRehashPasswordString);
+                        preparedStatement.setString(1, newHash);
+                        preparedStatement.setString(2, username);
+                        preparedStatement.setString(3, oldHash);
+                        return preparedStatement.executeUpdate();
+                    });
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The hashing pool is busy, the next login tries again.
+        }
+    }
 
-        String encryptedPassword = Crypt.crypt(givenPlainPassword, salt);
+    public String getUserNickname(String username) throws SQLException {
+        PooledConnection connection = readPool.acquire();
+        try {
+            PreparedStatement preparedStatement = connection.prepare(preparedGetUserNickNameString);
+            preparedStatement.setString(1, username);
 
-        return encryptedPassword;
-    }
+            String userNickname = "";
 
-    /**
-     * Decrypts the given plain password and compares it with the crypted password stored in the database.
-     * 
-     * @param givenPlainPassword The plain password provided by the user.
-     * @param cryptedPasswordDB The crypted password stored in the database.
-     * @return true if the decrypted password matches the crypted password, false otherwise.
-     */
-    private boolean decryptPassword(String givenPlainPassword, String cryptedPasswordDB) {
-        return (cryptedPasswordDB.equals(Crypt.crypt(givenPlainPassword, cryptedPasswordDB)));
+            ResultSet rs = preparedStatement.executeQuery();
+            if (rs.next()) {
+                userNickname = rs.getString("userNickname");
+            }
+            rs.close();
+            return userNickname;
+        } finally {
+            readPool.release(connection);
+        }
     }
 
 }
@@ -2,21 +2,23 @@ package com.server;
 
 import com.sun.net.httpserver.*;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.stream.Collectors;
 
-public class MessageHandler implements HttpHandler {
+public class MessageHandler extends BaseHandler {
 
     private final UserMessage userMessage;
+    private final int maxPageSize = ServerConfig.getInt("info.page.max", 1000);
+    private final int maxSearchOffset = ServerConfig.getInt("info.search.offset.max", 10000);
+    private final boolean streamResponses = ServerConfig.getBoolean("info.streaming", true);
+    private final ListingCache listingCache = ListingCache.fromConfig();
+    private final MessageQuery firstPage = MessageQuery.parse(null, maxPageSize);
 
     public MessageHandler() {
         userMessage = new UserMessage();
+        Metrics.register("listingCache", listingCache::metrics);
     }
 
     /**
@@ -26,7 +28,7 @@ public class MessageHandler implements HttpHandler {
      * @param exchange the HttpExchange object representing the HTTP request and response
      */
     @Override
-    public synchronized void handle(HttpExchange exchange) {
+    public void handle(HttpExchange exchange) {
 
         Headers headers = exchange.getRequestHeaders();
         String contentType = "";
@@ -38,7 +40,19 @@ public class MessageHandler implements HttpHandler {
                 sendResponse(exchange, 415, "Unsupported content type");
                 return;
             }
-            if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            if (exchange.getRequestURI().getPath().equals("/info/nearby")) {
+                if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                    handleNearbyRequest(exchange);
+                } else {
+                    sendResponse(exchange, 400, "Not supported");
+                }
+            } else if (exchange.getRequestURI().getPath().equals("/info/search")) {
+                if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                    handleSearchRequest(exchange);
+                } else {
+                    sendResponse(exchange, 400, "Not supported");
+                }
+            } else if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
                 handlePostRequest(exchange);
             } else if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
                 handleGetRequest(exchange);
@@ -53,103 +67,275 @@ public class MessageHandler implements HttpHandler {
 
     /**
      * Handles a POST request received by the server.
-     * Sends JSON data to the UserMessage class to be handled.
+     * Parses the location JSON and sends it to the UserMessage class to be handled.
      * Handles all situations where the server receives a POST request.
      *
      * @param exchange the HttpExchange object as request.
      * @throws IOException if an I/O error occurs while handling the request.
      */
-    private synchronized void handlePostRequest(HttpExchange exchange) throws IOException {
-        String requestBody = requestBody(exchange);
-        
-        if (requestBody == null || requestBody.isEmpty()) {
-            sendResponse(exchange, 400, "POST Empty");
-            return;
-        }
-    
-        try {
-            JSONObject json = new JSONObject(requestBody);
-            String userName = exchange.getPrincipal().getUsername();
-            Boolean messageHandled = userMessage.handleMessage(json, userName);
+    private void handlePostRequest(HttpExchange exchange) throws IOException {
+        try (RequestBody requestBody = readRequestBody(exchange)) {
+            if (requestBody.isEmpty()) {
+                sendResponse(exchange, 400, "POST Empty");
+                return;
+            }
+
+            LocationCommand command = LocationParser.parse(requestBody.bytes(), requestBody.length());
+            UserPrincipal user = (UserPrincipal) exchange.getPrincipal();
+            Boolean messageHandled = userMessage.handleMessage(command, user.getNickname());
             if (messageHandled) {
                 sendResponse(exchange, 200, "OK");
             } else {
                 sendResponse(exchange, 405, "Failed to handle message");
             }
+        } catch (RequestTooLargeException e) {
+            sendResponse(exchange, 413, e.getMessage());
         } catch (JSONException e) {
-            e.printStackTrace();
-            sendResponse(exchange, 400, "Invalid JSON!");
+            sendResponse(exchange, 400, "Invalid JSON! " + e.getMessage());
         }
     }
 
     /**
      * Handles a GET request by retrieving user messages and sending a response.
      * Sends JSON Array to the client when GET is requested.
+     * The listing can be paged with limit and after and filtered with city, country,
+     * nickname and since query parameters. A page has at most -Dinfo.page.max (default 1000)
+     * locations, which is also its size when no limit is given.
      * If there is error sends appropriate error code.
      *
      * @param  exchange the HttpExchange object as request.
      * @throws IOException if an I/O error occurs while handling the request
      */
-    private synchronized void handleGetRequest(HttpExchange exchange) throws IOException {
+    private void handleGetRequest(HttpExchange exchange) throws IOException {
+        MessageQuery query;
+        try {
+            query = MessageQuery.parse(exchange.getRequestURI().getRawQuery(), maxPageSize);
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, e.getMessage());
+            return;
+        }
+
+        try {
+            if (query.isFirstPage()) {
+                sendCachedMessages(exchange);
+            } else if (streamResponses) {
+                streamMessages(exchange, query);
+            } else {
+                bufferMessages(exchange, query);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            sendResponse(exchange, 500, "Database error");
+        }
+    }
+
+    /**
+     * Handles a nearby search, GET /info/nearby, answered from the in-memory geo index.
+     * Sends the locations found as a JSON array with their distances, or 204 if none were found.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @throws IOException if an I/O error occurs while handling the request
+     */
+    private void handleNearbyRequest(HttpExchange exchange) throws IOException {
+        NearbyQuery query;
+        try {
+            query = NearbyQuery.parse(exchange.getRequestURI().getRawQuery(), maxPageSize);
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, e.getMessage());
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        JsonStreamWriter json = new JsonStreamWriter(buffer);
+        try {
+            int count = userMessage.writeNearby(query, json);
+            json.close();
+            if (count == 0) {
+                sendResponse(exchange, 204, -1);
+            } else {
+                sendResponse(exchange, 200, buffer.toByteArray());
+            }
+        } catch (SQLException e) {
+            json.discard();
+            e.printStackTrace();
+            sendResponse(exchange, 500, "Database error");
+        }
+    }
+
+    /**
+     * Handles a keyword search, GET /info/search, answered from the full-text index.
+     * Sends a page of the matching locations as a JSON array, best match first, or 204 if
+     * nothing matched.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @throws IOException if an I/O error occurs while handling the request
+     */
+    private void handleSearchRequest(HttpExchange exchange) throws IOException {
+        SearchQuery query;
         try {
-            JSONArray userMessages = userMessage.getMessages();
-            if (userMessages.isEmpty()) {
+            query = SearchQuery.parse(exchange.getRequestURI().getRawQuery(), maxPageSize, maxSearchOffset);
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, e.getMessage());
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        JsonStreamWriter json = new JsonStreamWriter(buffer);
+        try {
+            int count = userMessage.writeSearch(query, json);
+            json.close();
+            if (count == 0) {
                 sendResponse(exchange, 204, -1);
             } else {
-                byte[] responseBytes = userMessages.toString().getBytes(StandardCharsets.UTF_8);
-                sendResponse(exchange, 200, new String(responseBytes));
+                sendResponse(exchange, 200, buffer.toByteArray());
             }
         } catch (SQLException e) {
+            json.discard();
             e.printStackTrace();
             sendResponse(exchange, 500, "Database error");
         }
     }
 
     /**
-     * Reads the request body from the HttpExchange object.
+     * Sends the first page of the listing from the listing cache, which is only rebuilt after a write.
+     * Responds 304 if the client already has the current listing (If-None-Match), and sends
+     * a compressed variant to clients that accept one. A listing too large for the cache is
+     * streamed instead.
      *
      * @param exchange the HttpExchange object as request.
-     * @return the request body as a string.
-     * @throws IOException if an I/O error occurs while reading the request body.
+     * @throws SQLException if the listing has to be rebuilt and the query fails
+     * @throws IOException if an I/O error occurs while sending the response
      */
-    private synchronized String requestBody(HttpExchange exchange) throws IOException {
-        InputStream stream = exchange.getRequestBody();
-        String requestBody = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))
-                .lines().collect(Collectors.joining("\n"));
-        stream.close();
-        return requestBody;
+    private void sendCachedMessages(HttpExchange exchange) throws SQLException, IOException {
+        long version = userMessage.getListingVersion();
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        Headers responseHeaders = exchange.getResponseHeaders();
+        // The ETag only names a version, so a client that has it needs no listing loaded.
+        String etag = listingCache.etag(version);
+        if (ifNoneMatch != null && matchesEtag(ifNoneMatch, etag)) {
+            responseHeaders.set("ETag", etag);
+            responseHeaders.set("Vary", "Accept-Encoding");
+            sendResponse(exchange, 304, -1);
+            return;
+        }
+
+        ListingCache.Entry listing = listingCache.get(version, out -> {
+            JsonStreamWriter json = new JsonStreamWriter(out);
+            try {
+                int count = userMessage.writeMessages(firstPage, json);
+                json.close();
+                return count;
+            } finally {
+                // Left open when the listing outgrows the cache.
+                json.discard();
+            }
+        });
+
+        if (listing.isOversized()) {
+            streamMessages(exchange, firstPage);
+            return;
+        }
+        if (listing.getBody() == null) {
+            sendResponse(exchange, 204, -1);
+            return;
+        }
+
+        responseHeaders.set("ETag", listing.getEtag());
+        responseHeaders.set("Vary", "Accept-Encoding");
+        ResponseCompression.Encoding encoding = ResponseCompression.Encoding.IDENTITY;
+        if (ResponseCompression.isWorthCompressing(listing.getBody().length)) {
+            encoding = ResponseCompression.negotiate(exchange.getRequestHeaders());
+            ResponseCompression.setHeaders(exchange, encoding);
+        }
+        byte[] body = listing.getBody(encoding);
+        sendEncodedResponse(exchange, 200, body, body.length);
     }
 
     /**
-     * Sends a response to the client with the given status code and response body.
+     * Weak comparison of the ETags in If-None-Match with the current one. A "*" is not taken
+     * as a match, since the current listing may be empty.
+     */
+    private static boolean matchesEtag(String ifNoneMatch, String etag) {
+        String current = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Streams the listing to the client with chunked transfer encoding while the rows are read,
+     * compressed if the client accepts it.
+     * If the listing fails after the response has started, the connection is closed so the
+     * client sees a truncated response instead of a complete looking one.
      *
      * @param exchange the HttpExchange object as request.
-     * @param statusCode the status code to send in the response.
-     * @param response the response body to send in the response.
-     * @throws IOException if an I/O error occurs while sending the response.
+     * @param query the filters and paging of the listing
+     * @throws SQLException if the query fails before anything has been sent
+     * @throws IOException if an I/O error occurs while sending the response
      */
-    private synchronized void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
-        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(statusCode, bytes.length);
-        OutputStream outputStream = exchange.getResponseBody();
-        outputStream.write(bytes);
-        outputStream.flush();
-        outputStream.close();
+    private void streamMessages(HttpExchange exchange, MessageQuery query) throws SQLException, IOException {
+        ChunkedResponseStream body = new ChunkedResponseStream(exchange, 200);
+        ResponseCompression.Encoding encoding = ResponseCompression.negotiate(exchange.getRequestHeaders());
+        ResponseCompression.setHeaders(exchange, encoding);
+        OutputStream compressed = ResponseCompression.compressingStream(body, encoding);
+        JsonStreamWriter json = new JsonStreamWriter(compressed);
+        int count;
+
+        try {
+            count = userMessage.writeMessages(query, json);
+        } catch (SQLException | IOException e) {
+            json.discard();
+            if (!body.isStarted()) {
+                ResponseCompression.discard(compressed);
+                exchange.getResponseHeaders().remove("Content-Encoding");
+                throw e;
+            }
+            e.printStackTrace();
+            ResponseCompression.discard(compressed);
+            exchange.close();
+            return;
+        }
+
+        if (count == 0) {
+            json.discard();
+            ResponseCompression.discard(compressed);
+            exchange.getResponseHeaders().remove("Content-Encoding");
+            sendResponse(exchange, 204, -1);
+        } else {
+            json.close();
+        }
     }
 
     /**
-     * Sends a response to the client with the given status code and response length.
-     * Overloaded method to send response without a response body.
+     * Writes the page of the listing into memory and sends it with a Content-Length.
      *
      * @param exchange the HttpExchange object as request.
-     * @param statusCode the status code to send in the response.
-     * @param length the response length to send in the response.
-     * @throws IOException if an I/O error occurs while sending the response.
+     * @param query the filters and paging of the listing
+     * @throws SQLException if the query fails
+     * @throws IOException if an I/O error occurs while sending the response
      */
-    private synchronized void sendResponse(HttpExchange exchange, int statusCode, int length) throws IOException {
-        exchange.sendResponseHeaders(statusCode, length);
-        OutputStream outputStream = exchange.getResponseBody();
-        outputStream.flush();
-        outputStream.close();
+    private void bufferMessages(HttpExchange exchange, MessageQuery query) throws SQLException, IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        JsonStreamWriter json = new JsonStreamWriter(buffer);
+        int count;
+        try {
+            count = userMessage.writeMessages(query, json);
+            json.close();
+        } finally {
+            json.discard();
+        }
+
+        if (count == 0) {
+            sendResponse(exchange, 204, -1);
+        } else {
+            sendResponse(exchange, 200, buffer.toByteArray());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,180 @@
+package com.server;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Filters and keyset paging for GET /info, parsed from the query string:
+ * limit, after (locationID cursor), city, country, nickname and since (modified or posting time).
+ * Every filter is backed by an index on the messages table. A listing is always one page: without
+ * a limit, or with limit=0, the page is as large as a client may ask for.
+ */
+public class MessageQuery {
+
+    private int limit;
+    private final int maxLimit;
+    private long after = 0;
+    private String city = null;
+    private String country = null;
+    private String nickname = null;
+    private long since = -1;
+
+    private MessageQuery(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Parses the query parameters of a GET /info request.
+     *
+     * @param rawQuery the raw query string of the request URI, may be null
+     * @param maxLimit the largest page size a client may ask for, and the page size if it does not ask
+     * @return the parsed query
+     * @throws IllegalArgumentException if a parameter is unknown or has an invalid value
+     */
+    public static MessageQuery parse(String rawQuery, int maxLimit) {
+        MessageQuery query = new MessageQuery(maxLimit);
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+
+        for (String parameter : rawQuery.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            int separator = parameter.indexOf('=');
+            String name = separator < 0 ? parameter : parameter.substring(0, separator);
+            String value = separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+
+            switch (name) {
+                case "limit":
+                    query.limit = parsePositive(name, value);
+                    if (query.limit == 0 || query.limit > query.maxLimit) {
+                        query.limit = query.maxLimit;
+                    }
+                    break;
+                case "after":
+                    query.after = parsePositive(name, value);
+                    break;
+                case "city":
+                    query.city = value;
+                    break;
+                case "country":
+                    query.country = value;
+                    break;
+                case "nickname":
+                    query.nickname = value;
+                    break;
+                case "since":
+                    query.since = TimeTools.parseEpoch(value);
+                    if (query.since == TimeTools.INVALID_TIME) {
+                        throw new IllegalArgumentException("Invalid value for since");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown query parameter " + name);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Builds the WHERE, ORDER BY and LIMIT part of the listing query.
+     * Rows are always returned in locationID order so that the last locationID of
+     * a page can be given as the after cursor of the next page.
+     *
+     * @return the SQL to append to the SELECT of the listing
+     */
+    public String toSql() {
+        StringBuilder sql = new StringBuilder(" WHERE locationID > ?");
+        if (city != null) {
+            sql.append(" AND locationCity = ?");
+        }
+        if (country != null) {
+            sql.append(" AND locationCountry = ?");
+        }
+        if (nickname != null) {
+            sql.append(" AND userNickname = ?");
+        }
+        if (since >= 0) {
+            sql.append(" AND COALESCE(modified, originalPostingTime) >= ?");
+        }
+        sql.append(" ORDER BY locationID LIMIT ?");
+        return sql.toString();
+    }
+
+    /**
+     * Binds the parameter values in the same order as they appear in toSql().
+     *
+     * @param preparedStatement the statement prepared from toSql()
+     * @throws SQLException if a value cannot be bound
+     */
+    public void bind(PreparedStatement preparedStatement) throws SQLException {
+        int index = 1;
+        preparedStatement.setLong(index++, after);
+        if (city != null) {
+            preparedStatement.setString(index++, city);
+        }
+        if (country != null) {
+            preparedStatement.setString(index++, country);
+        }
+        if (nickname != null) {
+            preparedStatement.setString(index++, nickname);
+        }
+        if (since >= 0) {
+            preparedStatement.setLong(index++, since);
+        }
+        preparedStatement.setInt(index++, limit);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public long getAfter() {
+        return after;
+    }
+
+    /**
+     * Returns a query with the same filters for the page of at most limit rows after the given
+     * locationID, used to read a listing in batches.
+     *
+     * @param after the locationID cursor of the page
+     * @param limit the most rows of the page
+     * @return the query of the page
+     */
+    public MessageQuery page(long after, int limit) {
+        MessageQuery page = new MessageQuery(maxLimit);
+        page.limit = limit;
+        page.after = after;
+        page.city = city;
+        page.country = country;
+        page.nickname = nickname;
+        page.since = since;
+        return page;
+    }
+
+    /**
+     * Returns true if the query has no filters and no cursor and the page is of the default size,
+     * i.e. it asks for the first page of the listing that every client starts with.
+     *
+     * @return true for the first page
+     */
+    public boolean isFirstPage() {
+        return limit == maxLimit && after == 0 && city == null && country == null && nickname == null && since < 0;
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 0) {
+                throw new IllegalArgumentException("Invalid value for " + name);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name, e);
+        }
+    }
+}
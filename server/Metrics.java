@@ -0,0 +1,39 @@
+package com.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+public class Metrics {
+
+    private static final Map<String, Supplier<JSONObject>> sources = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a named source of metrics. The supplier is called every time
+     * the metrics are requested, so it should only read counters.
+     *
+     * @param name the name under which the metrics are reported
+     * @param source the supplier producing the current metrics
+     */
+    public static void register(String name, Supplier<JSONObject> source) {
+        sources.put(name, source);
+    }
+
+    /**
+     * Collects the current values of all registered metric sources.
+     *
+     * @return a JSON object containing one entry per registered source
+     */
+    public static JSONObject snapshot() {
+        JSONObject snapshot = new JSONObject();
+        for (Map.Entry<String, Supplier<JSONObject>> source : sources.entrySet()) {
+            snapshot.put(source.getKey(), source.getValue().get());
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,50 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+public class MetricsHandler implements HttpHandler {
+
+    public MetricsHandler() {
+    }
+
+    /**
+     * Handles the HTTP request by sending the current server metrics on GET.
+     *
+     * @param exchange the HttpExchange object representing the HTTP request and response
+     */
+    @Override
+    public void handle(HttpExchange exchange) {
+        try {
+            if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                sendResponse(exchange, 200, Metrics.snapshot().toString());
+            } else {
+                sendResponse(exchange, 400, "Not supported");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a response to the client with the given status code and response body.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @param statusCode the status code to send in the response.
+     * @param response the response body to send in the response.
+     * @throws IOException if an I/O error occurs while sending the response.
+     */
+    private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(bytes);
+        outputStream.flush();
+        outputStream.close();
+    }
+}
@@ -0,0 +1,128 @@
+package com.server;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A nearby search of GET /info/nearby, parsed from the query string. Either
+ * lat and lon with an optional radius in metres, for the nearest locations first, or
+ * bbox=minLat,minLon,maxLat,maxLon for the locations inside the box. limit caps the number
+ * of results (default 10).
+ */
+public class NearbyQuery {
+
+    private static final int DEFAULT_LIMIT = 10;
+
+    private double latitude = Double.NaN;
+    private double longitude = Double.NaN;
+    private double radius = 0;
+    private double[] bbox = null;
+    private int limit = DEFAULT_LIMIT;
+
+    private NearbyQuery() {
+    }
+
+    /**
+     * Parses the query parameters of a GET /info/nearby request.
+     *
+     * @param rawQuery the raw query string of the request URI, may be null
+     * @param maxLimit the most results a client may ask for
+     * @return the parsed query
+     * @throws IllegalArgumentException if a parameter is unknown, missing or has an invalid value
+     */
+    public static NearbyQuery parse(String rawQuery, int maxLimit) {
+        NearbyQuery query = new NearbyQuery();
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                if (parameter.isEmpty()) {
+                    continue;
+                }
+                int separator = parameter.indexOf('=');
+                String name = separator < 0 ? parameter : parameter.substring(0, separator);
+                String value = separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+
+                switch (name) {
+                    case "lat":
+                        query.latitude = parseCoordinate(name, value, 90.0);
+                        break;
+                    case "lon":
+                        query.longitude = parseCoordinate(name, value, 180.0);
+                        break;
+                    case "radius":
+                        query.radius = parseNumber(name, value);
+                        if (query.radius <= 0) {
+                            throw new IllegalArgumentException("Invalid value for radius");
+                        }
+                        break;
+                    case "bbox":
+                        String[] edges = value.split(",");
+                        if (edges.length != 4) {
+                            throw new IllegalArgumentException("Invalid value for bbox");
+                        }
+                        query.bbox = new double[] { parseCoordinate(name, edges[0], 90.0),
+                                parseCoordinate(name, edges[1], 180.0), parseCoordinate(name, edges[2], 90.0),
+                                parseCoordinate(name, edges[3], 180.0) };
+                        if (query.bbox[0] > query.bbox[2]) {
+                            throw new IllegalArgumentException("Invalid value for bbox");
+                        }
+                        break;
+                    case "limit":
+                        double limit = parseNumber(name, value);
+                        if (limit < 1 || limit != Math.floor(limit)) {
+                            throw new IllegalArgumentException("Invalid value for limit");
+                        }
+                        query.limit = (int) Math.min(limit, maxLimit);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown query parameter " + name);
+                }
+            }
+        }
+
+        boolean point = !Double.isNaN(query.latitude) || !Double.isNaN(query.longitude);
+        if (point == (query.bbox != null)) {
+            throw new IllegalArgumentException("Give either lat and lon or bbox");
+        }
+        if (point && (Double.isNaN(query.latitude) || Double.isNaN(query.longitude))) {
+            throw new IllegalArgumentException("Give both lat and lon");
+        }
+        if (query.bbox != null && query.radius > 0) {
+            throw new IllegalArgumentException("radius can only be given with lat and lon");
+        }
+        return query;
+    }
+
+    /**
+     * Runs the search on the index.
+     *
+     * @param geoIndex the index of the location coordinates
+     * @return the locations found, nearest first for a point and in locationID order for a box
+     */
+    public List<GeoIndex.Hit> run(GeoIndex geoIndex) {
+        if (bbox != null) {
+            return geoIndex.within(bbox[0], bbox[1], bbox[2], bbox[3], limit);
+        }
+        return geoIndex.nearest(latitude, longitude, radius, limit);
+    }
+
+    private static double parseCoordinate(String name, String value, double max) {
+        double coordinate = parseNumber(name, value);
+        if (Math.abs(coordinate) > max) {
+            throw new IllegalArgumentException("Invalid value for " + name);
+        }
+        return coordinate;
+    }
+
+    private static double parseNumber(String name, String value) {
+        try {
+            double number = Double.parseDouble(value.trim());
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                throw new IllegalArgumentException("Invalid value for " + name);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name, e);
+        }
+    }
+}
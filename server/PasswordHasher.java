@@ -0,0 +1,252 @@
+package com.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.apache.commons.codec.digest.Crypt;
+import org.json.JSONObject;
+
+/**
+ * Hashes and verifies passwords on a small pool of its own (-Dauth.hash.threads, default one per
+ * core) with a bounded queue (-Dauth.hash.queue, default 1000), so that hashing never runs while
+ * a database connection is held and a burst of logins cannot take every request thread.
+ * New passwords are hashed with -Dauth.hash: pbkdf2 (PBKDF2WithHmacSHA512 with
+ * -Dauth.hash.iterations rounds, the default) or sha512crypt (the old Crypt.crypt format).
+ * Hashes in any of the formats can be verified; needsRehash tells which ones should be
+ * replaced with the configured format the next time the password is known.
+ */
+public class PasswordHasher {
+
+    public enum Algorithm {
+        PBKDF2, SHA512CRYPT
+    }
+
+    private static final String PBKDF2_PREFIX = "$pbkdf2-sha512$";
+    private static final int SALT_LENGTH = 16;
+    private static final int KEY_LENGTH = 64;
+
+    private static PasswordHasher instance = null;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final Algorithm algorithm;
+    private final int iterations;
+    private final ThreadPoolExecutor pool;
+
+    private final LongAdder hashes = new LongAdder();
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder failedVerifications = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+
+    public static synchronized PasswordHasher getInstance() {
+        if (null == instance) {
+            String algorithmName = ServerConfig.getString("auth.hash", "pbkdf2");
+            Algorithm algorithm;
+            try {
+                algorithm = Algorithm.valueOf(algorithmName.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown password hash " + algorithmName + ", using pbkdf2");
+                algorithm = Algorithm.PBKDF2;
+            }
+            instance = new PasswordHasher(algorithm, ServerConfig.getInt("auth.hash.iterations", 210000),
+                    ServerConfig.getInt("auth.hash.threads", Runtime.getRuntime().availableProcessors()),
+                    ServerConfig.getInt("auth.hash.queue", 1000));
+            Metrics.register("passwordHasher", instance::metrics);
+        }
+        return instance;
+    }
+
+    public PasswordHasher(Algorithm algorithm, int iterations, int threads, int queueLimit) {
+        this.algorithm = algorithm;
+        this.iterations = Math.max(1000, iterations);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueLimit)), task -> {
+                    Thread thread = new Thread(task, "password-hasher-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Hashes a new password with the configured algorithm, waiting for the pool.
+     *
+     * @param password the plain password
+     * @return the hash to store
+     * @throws RejectedExecutionException if the hashing queue is full
+     * @throws IllegalStateException if hashing fails
+     */
+    public String hash(String password) {
+        return await(hashAsync(password));
+    }
+
+    /**
+     * Hashes a new password with the configured algorithm on the pool.
+     *
+     * @param password the plain password
+     * @return the future hash
+     * @throws RejectedExecutionException if the hashing queue is full
+     */
+    public CompletableFuture<String> hashAsync(String password) {
+        return submit(() -> {
+            hashes.increment();
+            byte[] salt = new byte[SALT_LENGTH];
+            secureRandom.nextBytes(salt);
+            if (algorithm == Algorithm.SHA512CRYPT) {
+                return Crypt.crypt(password, "$6$" + Base64.getEncoder().encodeToString(salt));
+            }
+            Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+            return PBKDF2_PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$"
+                    + encoder.encodeToString(pbkdf2(password, salt, iterations));
+        });
+    }
+
+    /**
+     * Checks a password against a stored hash of any supported format, waiting for the pool.
+     *
+     * @param password the plain password given by the user
+     * @param storedHash the hash stored in the database
+     * @return true if the password matches, false if it does not, the stored hash is malformed
+     *         or the hashing queue is full
+     */
+    public boolean verify(String password, String storedHash) {
+        try {
+            return await(submit(() -> {
+                verifications.increment();
+                boolean matches = matches(password, storedHash);
+                if (!matches) {
+                    failedVerifications.increment();
+                }
+                return matches;
+            }));
+        } catch (RejectedExecutionException e) {
+            return false;
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Tells if a stored hash is weaker than what the configured algorithm would produce now:
+     * an sha512crypt hash when PBKDF2 is configured, or a PBKDF2 hash with fewer iterations.
+     *
+     * @param storedHash the hash stored in the database
+     * @return true if the hash should be replaced after the next successful login
+     */
+    public boolean needsRehash(String storedHash) {
+        if (algorithm != Algorithm.PBKDF2) {
+            return false;
+        }
+        if (!storedHash.startsWith(PBKDF2_PREFIX)) {
+            return true;
+        }
+        String[] parts = storedHash.substring(PBKDF2_PREFIX.length()).split("\\$");
+        try {
+            return Integer.parseInt(parts[0]) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Returns the counters and the state of the pool.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        long count = hashes.sum() + verifications.sum();
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("algorithm", algorithm.name().toLowerCase(Locale.ROOT));
+        metrics.put("iterations", iterations);
+        metrics.put("threads", pool.getMaximumPoolSize());
+        metrics.put("active", pool.getActiveCount());
+        metrics.put("queued", pool.getQueue().size());
+        metrics.put("hashes", hashes.sum());
+        metrics.put("verifications", verifications.sum());
+        metrics.put("failedVerifications", failedVerifications.sum());
+        metrics.put("rejected", rejected.sum());
+        metrics.put("averageMillis", count == 0 ? 0.0 : hashNanos.sum() / 1_000_000.0 / count);
+        return metrics;
+    }
+
+    private boolean matches(String password, String storedHash) throws GeneralSecurityException {
+        if (storedHash.startsWith(PBKDF2_PREFIX)) {
+            String[] parts = storedHash.substring(PBKDF2_PREFIX.length()).split("\\$");
+            if (parts.length != 3) {
+                return false;
+            }
+            int rounds;
+            try {
+                rounds = Integer.parseInt(parts[0]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(parts[2]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, decoder.decode(parts[1]), rounds));
+        }
+        return MessageDigest.isEqual(storedHash.getBytes(StandardCharsets.UTF_8),
+                Crypt.crypt(password, storedHash).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int rounds) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, rounds, KEY_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private interface HashTask<T> {
+        T run() throws GeneralSecurityException;
+    }
+
+    private <T> CompletableFuture<T> submit(HashTask<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    result.complete(task.run());
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    hashNanos.add(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        return result;
+    }
+
+    private static <T> T await(CompletableFuture<T> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for the password hash", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Database connection that keeps its prepared statements open and reuses them.
+ * A PooledConnection is used by one thread at a time, so the cache needs no locking.
+ * Statements returned by prepare() must not be closed by the caller.
+ */
+public class PooledConnection {
+
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public PooledConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Returns the prepared statement for the given SQL, preparing it on first use.
+     * The parameters of a reused statement are cleared before it is returned.
+     *
+     * @param sql the SQL string of the statement
+     * @return a prepared statement owned by this connection
+     * @throws SQLException if the statement cannot be prepared
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement preparedStatement = statements.get(sql);
+        if (preparedStatement != null) {
+            hits.increment();
+            preparedStatement.clearParameters();
+            return preparedStatement;
+        }
+        misses.increment();
+        preparedStatement = connection.prepareStatement(sql);
+        statements.put(sql, preparedStatement);
+        return preparedStatement;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int getCachedStatements() {
+        return statements.size();
+    }
+
+    /**
+     * Closes the cached statements and the connection.
+     */
+    public void close() {
+        try {
+            for (PreparedStatement preparedStatement : statements.values()) {
+                preparedStatement.close();
+            }
+            statements.clear();
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,21 +1,14 @@
 package com.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.stream.Collectors;
 
 import org.json.JSONObject;
 import org.json.JSONException;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
 
-public class RegistrationHandler implements HttpHandler {
+public class RegistrationHandler extends BaseHandler {
 
     private final UserAuthenticator userAuthenticator;
 
@@ -31,7 +24,7 @@ public class RegistrationHandler implements HttpHandler {
      * @param exchange the HttpExchange object representing the HTTP request and response
      */
     @Override
-    public synchronized void handle(HttpExchange exchange) throws IOException {
+    public void handle(HttpExchange exchange) throws IOException {
 
         Headers headers = exchange.getRequestHeaders();
         String contentType = "";
@@ -56,30 +49,30 @@ public class RegistrationHandler implements HttpHandler {
 
     /**
      * Handles a POST request received by the server.
-     * Sends JSON data to the UserAuthenticator class to be handled.
+     * Reads the user from the JSON data and sends it to the UserAuthenticator class to be handled.
      * Handles all situations where the server receives a POST request.
      *
      * @param exchange the HttpExchange object as request.
      * @throws IOException if an I/O error occurs while handling the request.
      */
-    private synchronized void handlePostRequest(HttpExchange exchange) throws IOException {
-        String requestBody = requestBody(exchange);
-    
-        if (requestBody == null || requestBody.isEmpty()) {
-            sendResponse(exchange, 400, "POST Empty");
-            return;
-        }
-    
-        try {
-            JSONObject json = new JSONObject(requestBody);
+    private void handlePostRequest(HttpExchange exchange) throws IOException {
+        try (RequestBody requestBody = readRequestBody(exchange)) {
+            if (requestBody.isEmpty()) {
+                sendResponse(exchange, 400, "POST Empty");
+                return;
+            }
+
+            JSONObject json = requestBody.toJson();
 
-            Boolean userAuthenticate = userAuthenticator.handleUser(json);
+            Boolean userAuthenticate = userAuthenticator.handleUser(User.fromJson(json));
     
             if (!userAuthenticate) {
                 sendResponse(exchange, 405, "Registration failed!");
             } else {
                 sendResponse(exchange, 200, "User registered");
             }
+        } catch (RequestTooLargeException e) {
+            sendResponse(exchange, 413, e.getMessage());
         } catch (JSONException e) {
             e.printStackTrace();
             sendResponse(exchange, 400, "Invalid JSON!");
@@ -88,36 +81,4 @@ public class RegistrationHandler implements HttpHandler {
             e.printStackTrace();
         }
     }
-
-     /**
-     * Reads the request body from the HttpExchange object.
-     *
-     * @param exchange the HttpExchange object as request.
-     * @return the request body as a string.
-     * @throws IOException if an I/O error occurs while reading the request body.
-     */
-    private synchronized String requestBody(HttpExchange exchange) throws IOException {
-        InputStream stream = exchange.getRequestBody();
-        String requestBody = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))
-                .lines().collect(Collectors.joining("\n"));
-        stream.close();
-        return requestBody;
-    }
-
-     /**
-     * Sends a response to the client with the given status code and response body.
-     *
-     * @param exchange the HttpExchange object as request.
-     * @param statusCode the status code to send in the response.
-     * @param response the response body to send in the response.
-     * @throws IOException if an I/O error occurs while sending the response.
-     */
-    private synchronized void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
-        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(statusCode, bytes.length);
-        OutputStream outputStream = exchange.getResponseBody();
-        outputStream.write(bytes);
-        outputStream.flush();
-        outputStream.close();
-    }
-}
\ No newline at end of file
+}
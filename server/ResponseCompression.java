@@ -0,0 +1,315 @@
+package com.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * gzip and deflate compression of response bodies, negotiated from the Accept-Encoding header.
+ * Bodies shorter than -Dhttp.compression.min bytes (default 1024) are sent as they are, and
+ * -Dhttp.compression=false turns compression off. The level is set with -Dhttp.compression.level
+ * (1-9, default 6). Deflaters are expensive to create, so they are kept in small pools and
+ * reused instead of allocating one per response.
+ */
+public class ResponseCompression {
+
+    /**
+     * Content codings the server can send.
+     */
+    public enum Encoding {
+        IDENTITY(null), GZIP("gzip"), DEFLATE("deflate");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+
+    private static final boolean enabled = ServerConfig.getBoolean("http.compression", true);
+    private static final int minSize = ServerConfig.getInt("http.compression.min", 1024);
+    private static final int level = Math.max(1, Math.min(9, ServerConfig.getInt("http.compression.level", 6)));
+    private static final int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+
+    // gzip writes its own header and trailer around raw deflate data, deflate is the zlib format.
+    private static final BlockingQueue<Deflater> rawDeflaters = new ArrayBlockingQueue<>(poolSize);
+    private static final BlockingQueue<Deflater> zlibDeflaters = new ArrayBlockingQueue<>(poolSize);
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private ResponseCompression() {
+    }
+
+    /**
+     * Chooses the coding of the response from the Accept-Encoding header of the request.
+     * gzip is preferred over deflate, codings with q=0 are never chosen.
+     *
+     * @param requestHeaders the headers of the request
+     * @return the coding to use, IDENTITY if the client accepts neither or compression is off
+     */
+    public static Encoding negotiate(Headers requestHeaders) {
+        String acceptEncoding = requestHeaders.getFirst("Accept-Encoding");
+        if (!enabled || acceptEncoding == null) {
+            return Encoding.IDENTITY;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(",")) {
+            int parameters = coding.indexOf(';');
+            String name = (parameters < 0 ? coding : coding.substring(0, parameters)).trim();
+            if (parameters >= 0 && isZeroQuality(coding.substring(parameters + 1))) {
+                continue;
+            }
+            if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                gzip = true;
+            } else if (name.equalsIgnoreCase("deflate")) {
+                deflate = true;
+            }
+        }
+        return gzip ? Encoding.GZIP : (deflate ? Encoding.DEFLATE : Encoding.IDENTITY);
+    }
+
+    /**
+     * Returns true if a body of the given length is worth compressing.
+     *
+     * @param length the length of the uncompressed body
+     * @return true if the body is at least -Dhttp.compression.min bytes
+     */
+    public static boolean isWorthCompressing(long length) {
+        return enabled && length >= minSize;
+    }
+
+    /**
+     * Compresses a whole body.
+     *
+     * @param body the uncompressed body
+     * @param encoding the coding to apply
+     * @return the compressed body, or the body itself for IDENTITY
+     */
+    public static byte[] compress(byte[] body, Encoding encoding) {
+        if (encoding == Encoding.IDENTITY) {
+            return body;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (OutputStream out = compressingStream(buffer, encoding)) {
+            out.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Compresses the body with the coding negotiated for the exchange and sets the
+     * Content-Encoding and Vary headers accordingly. Short bodies are returned as they are.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @param body the uncompressed body
+     * @return the body to send
+     */
+    public static byte[] encode(HttpExchange exchange, byte[] body) {
+        if (!isWorthCompressing(body.length)) {
+            return body;
+        }
+        Encoding encoding = negotiate(exchange.getRequestHeaders());
+        setHeaders(exchange, encoding);
+        return compress(body, encoding);
+    }
+
+    /**
+     * Sets the Vary header, and the Content-Encoding header unless the coding is IDENTITY.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @param encoding the coding of the response body
+     */
+    public static void setHeaders(HttpExchange exchange, Encoding encoding) {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("Vary", "Accept-Encoding");
+        if (encoding != Encoding.IDENTITY) {
+            responseHeaders.set("Content-Encoding", encoding.getToken());
+        }
+    }
+
+    /**
+     * Wraps a stream so that everything written to it is compressed. Closing the returned
+     * stream finishes the compressed data and closes the wrapped stream. Nothing is written
+     * to the wrapped stream before the first write or close, so a handler streaming into a
+     * ChunkedResponseStream can still answer differently while nothing has been written.
+     *
+     * @param out the stream the compressed data is written to
+     * @param encoding the coding to apply
+     * @return the compressing stream, or the stream itself for IDENTITY
+     */
+    public static OutputStream compressingStream(OutputStream out, Encoding encoding) {
+        switch (encoding) {
+            case GZIP:
+                return new CompressingStream(out, borrow(rawDeflaters, true), rawDeflaters, true);
+            case DEFLATE:
+                return new CompressingStream(out, borrow(zlibDeflaters, false), zlibDeflaters, false);
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * Abandons a stream returned by compressingStream without writing anything more to the
+     * wrapped stream, e.g. when the handler answers 204 or 500 instead. Gives the Deflater
+     * back to its pool; does nothing for an IDENTITY stream.
+     *
+     * @param stream the stream returned by compressingStream
+     */
+    public static void discard(OutputStream stream) {
+        if (stream instanceof CompressingStream) {
+            ((CompressingStream) stream).discard();
+        }
+    }
+
+    private static boolean isZeroQuality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            String trimmed = parameter.trim();
+            if (trimmed.startsWith("q=") || trimmed.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(trimmed.substring(2).trim()) <= 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Deflater borrow(BlockingQueue<Deflater> pool, boolean nowrap) {
+        Deflater deflater = pool.poll();
+        return deflater != null ? deflater : new Deflater(level, nowrap);
+    }
+
+    private static void giveBack(BlockingQueue<Deflater> pool, Deflater deflater) {
+        deflater.reset();
+        if (!pool.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Deflates into the wrapped stream with a pooled Deflater, adding the gzip header and
+     * trailer when writing gzip. The header is written with the first data, not when the
+     * stream is created. The Deflater goes back to its pool when the stream is closed or
+     * discarded.
+     */
+    private static final class CompressingStream extends FilterOutputStream {
+
+        private final Deflater deflater;
+        private final BlockingQueue<Deflater> pool;
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[8192];
+        private boolean started = false;
+        private boolean closed = false;
+
+        CompressingStream(OutputStream out, Deflater deflater, BlockingQueue<Deflater> pool, boolean gzip) {
+            super(out);
+            this.deflater = deflater;
+            this.pool = pool;
+            this.gzip = gzip;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            start();
+            if (gzip) {
+                crc.update(bytes, offset, length);
+            }
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput()) {
+                drain(Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * Sends what has been compressed so far, so that a streamed response keeps moving.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (started) {
+                drain(Deflater.SYNC_FLUSH);
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                start();
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain(Deflater.NO_FLUSH);
+                }
+                if (gzip) {
+                    writeInt((int) crc.getValue());
+                    writeInt((int) deflater.getBytesRead());
+                }
+            } finally {
+                giveBack(pool, deflater);
+            }
+            out.close();
+        }
+
+        void discard() {
+            if (!closed) {
+                closed = true;
+                giveBack(pool, deflater);
+            }
+        }
+
+        private void start() throws IOException {
+            if (!started) {
+                started = true;
+                if (gzip) {
+                    out.write(GZIP_HEADER);
+                }
+            }
+        }
+
+        private void drain(int flush) throws IOException {
+            int length;
+            do {
+                length = deflater.deflate(buffer, 0, buffer.length, flush);
+                if (length > 0) {
+                    out.write(buffer, 0, length);
+                }
+            } while (length == buffer.length);
+        }
+
+        private void writeInt(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+            out.write((value >> 16) & 0xff);
+            out.write((value >> 24) & 0xff);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.server;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A full-text search of GET /info/search, parsed from the query string: q with the search
+ * words, limit (default 10) and offset for paging. Every word matches as a prefix, so
+ * "hel kat" finds "Helsinki" and "Katu", and a location must match every word.
+ */
+public class SearchQuery {
+
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_TERMS = 16;
+
+    private final List<String> terms = new ArrayList<>();
+    private int limit = DEFAULT_LIMIT;
+    private int offset = 0;
+
+    private SearchQuery() {
+    }
+
+    /**
+     * Parses the query parameters of a GET /info/search request.
+     *
+     * @param rawQuery the raw query string of the request URI, may be null
+     * @param maxLimit the largest page size a client may ask for
+     * @param maxOffset the largest offset a client may ask for
+     * @return the parsed query
+     * @throws IllegalArgumentException if a parameter is unknown or has an invalid value, or there are no words to search for
+     */
+    public static SearchQuery parse(String rawQuery, int maxLimit, int maxOffset) {
+        SearchQuery query = new SearchQuery();
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                if (parameter.isEmpty()) {
+                    continue;
+                }
+                int separator = parameter.indexOf('=');
+                String name = separator < 0 ? parameter : parameter.substring(0, separator);
+                String value = separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+
+                switch (name) {
+                    case "q":
+                        query.addTerms(value);
+                        break;
+                    case "limit":
+                        query.limit = Math.min(parsePositive(name, value), maxLimit);
+                        if (query.limit == 0) {
+                            throw new IllegalArgumentException("Invalid value for limit");
+                        }
+                        break;
+                    case "offset":
+                        query.offset = parsePositive(name, value);
+                        if (query.offset > maxOffset) {
+                            throw new IllegalArgumentException("offset can be at most " + maxOffset);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown query parameter " + name);
+                }
+            }
+        }
+        if (query.terms.isEmpty()) {
+            throw new IllegalArgumentException("Give the words to search for in q");
+        }
+        return query;
+    }
+
+    /**
+     * Builds the FTS5 match expression. Every word is quoted, so nothing the client sends is
+     * read as query syntax, and followed by * to match it as a prefix.
+     *
+     * @return the match expression
+     */
+    public String toMatch() {
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(term).append("\"*");
+        }
+        return match.toString();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Splits the search text into words of letters and digits, the same way the index does.
+     */
+    private void addTerms(String text) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (terms.size() == MAX_TERMS) {
+                    throw new IllegalArgumentException("Search for at most " + MAX_TERMS + " words");
+                }
+                terms.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 0) {
+                throw new IllegalArgumentException("Invalid value for " + name);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name, e);
+        }
+    }
+}
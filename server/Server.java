@@ -5,7 +5,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.security.KeyStore;
-import java.util.concurrent.Executors;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -24,30 +23,7 @@ public class Server {
 
     public static void main(String[] args) throws Exception {
         try {
-
-            HttpsServer server = HttpsServer.create(new InetSocketAddress(8001), 0);
-
-            SSLContext sslContext = myServerSSLContext();
-            server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
-                public void configure(HttpsParameters params) {
-                    InetSocketAddress remote = params.getClientAddress();
-                    SSLContext c = getSSLContext();
-                    SSLParameters sslparams = c.getDefaultSSLParameters();
-                    params.setSSLParameters(sslparams);
-                }
-            });
-
-            UserAuthenticator authenticator = new UserAuthenticator();
-            HttpContext httpContext = server.createContext("/info", new MessageHandler());
-            HttpContext topFiveContext = server.createContext("/topfive", new TopFiveHandler());
-            HttpContext registrationContext = server.createContext("/registration",
-                    new RegistrationHandler(authenticator));
-
-            httpContext.setAuthenticator(authenticator);
-
-            server.setExecutor(Executors.newCachedThreadPool());
-            server.start();
-            
+            start();
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (Exception e) {
@@ -55,10 +31,70 @@ public class Server {
         }
     }
 
+    /**
+     * Starts the server on the port set with -Dserver.port (default 8001), with the keystore
+     * set with -Dserver.keystore (default keystore.jks). The server is stopped and the database
+     * closed when the JVM shuts down.
+     *
+     * @return the started server
+     * @throws Exception if the keystore cannot be loaded or the server cannot be started
+     */
+    public static HttpsServer start() throws Exception {
+        HttpsServer server = HttpsServer.create(new InetSocketAddress(ServerConfig.getInt("server.port", 8001)), 0);
+
+        SSLContext sslContext = myServerSSLContext();
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+            public void configure(HttpsParameters params) {
+                InetSocketAddress remote = params.getClientAddress();
+                SSLContext c = getSSLContext();
+                SSLParameters sslparams = c.getDefaultSSLParameters();
+                params.setSSLParameters(sslparams);
+            }
+        });
+
+        ServerExecutor executor = ServerExecutor.fromConfig();
+        Metrics.register("executor", executor::metrics);
+
+        UserAuthenticator authenticator = new UserAuthenticator();
+        HttpContext httpContext = server.createContext("/info", new MessageHandler());
+        HttpContext bulkContext = server.createContext("/info/bulk", new BulkMessageHandler());
+        HttpContext changesContext = server.createContext("/info/changes", new ChangeFeedHandler(executor.getThreadLimit()));
+        HttpContext topFiveContext = server.createContext("/topfive", new TopFiveHandler());
+        HttpContext registrationContext = server.createContext("/registration",
+                new RegistrationHandler(authenticator));
+        HttpContext bulkRegistrationContext = server.createContext("/registration/bulk",
+                new BulkRegistrationHandler(authenticator));
+
+        HttpContext metricsContext = server.createContext("/metrics", new MetricsHandler());
+
+        httpContext.setAuthenticator(authenticator);
+        bulkContext.setAuthenticator(authenticator);
+        changesContext.setAuthenticator(authenticator);
+        bulkRegistrationContext.setAuthenticator(authenticator);
+
+        if (executor.getMode() == ServerExecutor.Mode.SHED) {
+            LoadShedFilter loadShedFilter = new LoadShedFilter();
+            for (HttpContext context : new HttpContext[] { httpContext, bulkContext, changesContext, topFiveContext,
+                    registrationContext, bulkRegistrationContext, metricsContext }) {
+                context.getFilters().add(loadShedFilter);
+            }
+        }
+
+        server.setExecutor(executor);
+        server.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            executor.shutdown(5);
+            MessageDatabase.getInstance().close();
+        }));
+        return server;
+    }
+
     private static SSLContext myServerSSLContext() throws Exception {
         char[] passphrase = "perkele".toCharArray();
         KeyStore ks = KeyStore.getInstance("JKS");
-        ks.load(new FileInputStream("keystore.jks"), passphrase);
+        ks.load(new FileInputStream(ServerConfig.getString("server.keystore", "keystore.jks")), passphrase);
 
         KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
         kmf.init(ks, passphrase);
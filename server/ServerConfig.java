@@ -0,0 +1,66 @@
+package com.server;
+
+public class ServerConfig {
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Returns the value of the given startup option.
+     * Options are passed to the server as system properties, e.g. -Dserver.executor=virtual.
+     *
+     * @param key the name of the option
+     * @param defaultValue the value used when the option is not set
+     * @return the configured value or the default value
+     */
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * Returns the integer value of the given startup option.
+     *
+     * @param key the name of the option
+     * @param defaultValue the value used when the option is not set or is not a number
+     * @return the configured value or the default value
+     */
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(key, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the long value of the given startup option.
+     *
+     * @param key the name of the option
+     * @param defaultValue the value used when the option is not set or is not a number
+     * @return the configured value or the default value
+     */
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(getString(key, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the boolean value of the given startup option.
+     *
+     * @param key the name of the option
+     * @param defaultValue the value used when the option is not set
+     * @return the configured value or the default value
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, Boolean.toString(defaultValue)));
+    }
+}
@@ -0,0 +1,256 @@
+package com.server;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Executor used by the HttpsServer to run exchanges. The mode is chosen at startup
+ * with -Dserver.executor:
+ * <ul>
+ * <li>cached - unbounded cached thread pool (the old behaviour)</li>
+ * <li>virtual - one virtual thread per request, falls back to cached when the JVM has no virtual threads</li>
+ * <li>shed (the default) - fixed pool with a bounded queue, requests over the limit are answered with 503</li>
+ * <li>bounded - fixed pool with a bounded queue, the dispatcher waits when the queue is full</li>
+ * </ul>
+ * In the bounded mode a full queue blocks the dispatcher thread of the HttpServer, which
+ * stops it from accepting and reading every connection, including the ones that would be
+ * answered quickly. Use it only where that backpressure is wanted.
+ * <p>
+ * In the shed mode the 503 cannot be sent from the dispatcher: the request has to be read
+ * first, which for HTTPS means the TLS handshake and decryption. Rejected exchanges are
+ * therefore answered by a separate pool of at most 4 threads, so that the work of turning
+ * requests away stays bounded. When its queue is full as well, execute() throws and the
+ * HttpServer closes the connection without an answer.
+ */
+public class ServerExecutor implements Executor {
+
+    public enum Mode {
+        CACHED, VIRTUAL, BOUNDED, SHED
+    }
+
+    private static final ThreadLocal<Boolean> shedding = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final ThreadPoolExecutor shedPool;
+    private final int queueLimit;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public ServerExecutor(Mode mode, int threads, int queueLimit) {
+        this.queueLimit = queueLimit;
+        ThreadPoolExecutor shedPool = null;
+
+        switch (mode) {
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual == null) {
+                    System.err.println("Virtual threads are not available on this JVM, using cached thread pool");
+                    mode = Mode.CACHED;
+                    this.executor = Executors.newCachedThreadPool();
+                } else {
+                    this.executor = virtual;
+                }
+                this.pool = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null;
+                break;
+            case BOUNDED:
+                this.pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(queueLimit), (task, executor) -> waitForQueue(task, executor));
+                this.executor = pool;
+                break;
+            case SHED:
+                // Answering with 503 is cheap, so the overflow queue can be much longer than the work queue.
+                int shedThreads = Math.min(threads, 4);
+                shedPool = new ThreadPoolExecutor(shedThreads, shedThreads, 30L, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(Math.max(queueLimit * 4, 1000)), (task, executor) -> {
+                            // Nothing left to answer with. The HttpServer closes the connection
+                            // when execute() throws, so the client is not left waiting.
+                            dropped.incrementAndGet();
+                            throw new RejectedExecutionException("Overflow queue is full");
+                        });
+                ThreadPoolExecutor overflow = shedPool;
+                this.pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(queueLimit), (task, executor) -> {
+                            shed.incrementAndGet();
+                            overflow.execute(() -> runShedding(task));
+                        });
+                this.executor = pool;
+                break;
+            default:
+                this.pool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+                this.executor = pool;
+                break;
+        }
+        this.mode = mode;
+        this.shedPool = shedPool;
+    }
+
+    /**
+     * Creates the executor configured with the startup options
+     * server.executor, server.executor.threads and server.executor.queue.
+     *
+     * @return the configured executor
+     */
+    public static ServerExecutor fromConfig() {
+        String modeName = ServerConfig.getString("server.executor", "shed");
+        Mode mode;
+        try {
+            mode = Mode.valueOf(modeName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown executor mode " + modeName + ", using shed");
+            mode = Mode.SHED;
+        }
+        int threads = ServerConfig.getInt("server.executor.threads", Runtime.getRuntime().availableProcessors() * 4);
+        int queueLimit = ServerConfig.getInt("server.executor.queue", 1000);
+        return new ServerExecutor(mode, Math.max(1, threads), Math.max(1, queueLimit));
+    }
+
+    /**
+     * Returns true when the current thread is running an exchange that was
+     * rejected because the queue was full and should be answered with 503.
+     *
+     * @return true if the current exchange should be shed
+     */
+    public static boolean isShedding() {
+        return shedding.get();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        submitted.incrementAndGet();
+        executor.execute(() -> {
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        });
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the most exchanges that run at once, which is the pool size in the bounded and
+     * shed modes. The cached and virtual modes start a thread for every exchange and have no limit.
+     *
+     * @return the number of request threads, or Integer.MAX_VALUE if there is no limit
+     */
+    public int getThreadLimit() {
+        if (mode == Mode.BOUNDED || mode == Mode.SHED) {
+            return pool.getMaximumPoolSize();
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Stops accepting new tasks and waits for running exchanges to finish.
+     *
+     * @param timeoutSeconds how long to wait for running tasks
+     */
+    public void shutdown(int timeoutSeconds) {
+        executor.shutdown();
+        if (shedPool != null) {
+            shedPool.shutdown();
+        }
+        try {
+            executor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the current pool and queue metrics of the executor.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("mode", mode.name().toLowerCase(Locale.ROOT));
+        metrics.put("active", active.get());
+        metrics.put("submitted", submitted.get());
+        metrics.put("completed", completed.get());
+
+        if (pool != null) {
+            metrics.put("poolSize", pool.getPoolSize());
+            metrics.put("largestPoolSize", pool.getLargestPoolSize());
+            metrics.put("maximumPoolSize", pool.getMaximumPoolSize());
+            metrics.put("queued", pool.getQueue().size());
+        }
+        if (mode == Mode.BOUNDED || mode == Mode.SHED) {
+            metrics.put("queueLimit", queueLimit);
+        }
+        if (mode == Mode.SHED) {
+            metrics.put("shed", shed.get());
+            metrics.put("dropped", dropped.get());
+        }
+        return metrics;
+    }
+
+    /**
+     * Runs a rejected exchange with the shedding flag set so that
+     * LoadShedFilter answers it with 503 instead of calling the handler.
+     *
+     * @param task the rejected exchange
+     */
+    private static void runShedding(Runnable task) {
+        shedding.set(Boolean.TRUE);
+        try {
+            task.run();
+        } finally {
+            shedding.set(Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Blocks the dispatcher thread until there is room in the queue.
+     * This pushes back on new connections instead of growing the pool, but also stops the
+     * server from reading any other connection meanwhile.
+     *
+     * @param task the task to queue
+     * @param executor the executor that rejected the task
+     */
+    private static void waitForQueue(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for queue", e);
+        }
+    }
+
+    /**
+     * Creates a virtual thread per task executor when running on a JVM that supports it.
+     *
+     * @return the executor, or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
@@ -1,13 +1,35 @@
 package com.server;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 
+/**
+ * Conversions between epoch milliseconds and the ISO time format of the API,
+ * yyyy-MM-dd'T'HH:mm:ss.SSSX. Times in UTC with four digit years, which is all the server
+ * itself produces, are parsed and formatted by hand without allocating; anything else goes
+ * through a shared DateTimeFormatter. All methods are thread safe and lock free.
+ */
 public class TimeTools {
 
+    /**
+     * Returned by parseEpoch for a time that is not valid.
+     */
+    public static final long INVALID_TIME = Long.MIN_VALUE;
+
+    /**
+     * Length of a time written by formatEpoch, e.g. 2023-01-01T10:00:00.000Z.
+     */
+    public static final int ISO_LENGTH = 24;
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    private static final DateTimeFormatter UTC_FORMATTER = FORMATTER.withZone(ZoneOffset.UTC);
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
     /**
      * Converts a zone time string to epoch timestamp.
      *
@@ -29,12 +51,62 @@ public class TimeTools {
      * @return a formatted string representing the zone time
      */
     public static String convertEpochToZoneTime(long epoch) {
-
-        ZonedDateTime conversionTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(epoch), ZoneId.of("UTC"));
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
-        return conversionTime.format(formatter);
+        byte[] buffer = new byte[ISO_LENGTH];
+        if (formatEpoch(epoch, buffer, 0) > 0) {
+            return new String(buffer, 0, ISO_LENGTH, StandardCharsets.US_ASCII);
+        }
+        return UTC_FORMATTER.format(Instant.ofEpochMilli(epoch));
     }
 
+    /**
+     * Writes an epoch timestamp as yyyy-MM-dd'T'HH:mm:ss.SSSZ in UTC into a buffer as ASCII.
+     *
+     * @param epoch the epoch timestamp in milliseconds
+     * @param buffer the buffer to write to, with at least ISO_LENGTH bytes free from offset
+     * @param offset where to start writing
+     * @return the number of bytes written, or 0 if the year is not between 1 and 9999
+     *         and the time has to be formatted with convertEpochToZoneTime instead
+     */
+    public static int formatEpoch(long epoch, byte[] buffer, int offset) {
+        long days = Math.floorDiv(epoch, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(epoch, MILLIS_PER_DAY);
+
+        // Civil date from days since 1970-01-01, see Howard Hinnant's chrono-compatible algorithms.
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 1 || year > 9999) {
+            return 0;
+        }
+
+        int hour = millisOfDay / 3_600_000;
+        int minute = millisOfDay / 60_000 % 60;
+        int second = millisOfDay / 1000 % 60;
+        int millis = millisOfDay % 1000;
+
+        int i = offset;
+        i = writeDigits(buffer, i, (int) year, 4);
+        buffer[i++] = '-';
+        i = writeDigits(buffer, i, month, 2);
+        buffer[i++] = '-';
+        i = writeDigits(buffer, i, day, 2);
+        buffer[i++] = 'T';
+        i = writeDigits(buffer, i, hour, 2);
+        buffer[i++] = ':';
+        i = writeDigits(buffer, i, minute, 2);
+        buffer[i++] = ':';
+        i = writeDigits(buffer, i, second, 2);
+        buffer[i++] = '.';
+        i = writeDigits(buffer, i, millis, 3);
+        buffer[i++] = 'Z';
+        return i - offset;
+    }
 
     /**
      * Returns the current time in epoch format.
@@ -51,13 +123,101 @@ public class TimeTools {
      * @param time the time string to be checked
      * @return true if the time string is valid, false otherwise
      */
-    public synchronized static boolean isGivenTimeValid(String time) {
+    public static boolean isGivenTimeValid(String time) {
+        return parseEpoch(time) != INVALID_TIME;
+    }
+
+    /**
+     * Validates a time in the format yyyy-MM-dd'T'HH:mm:ss.SSSX and converts it to epoch
+     * milliseconds in one go.
+     *
+     * @param time the time string to parse
+     * @return the epoch timestamp in milliseconds, or INVALID_TIME if the time is not valid
+     */
+    public static long parseEpoch(String time) {
+        if (time == null) {
+            return INVALID_TIME;
+        }
+        long epoch = parseUtc(time);
+        if (epoch != INVALID_TIME) {
+            return epoch;
+        }
         try {
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
-            ZonedDateTime.parse(time, formatter);
-            return true;
+            return ZonedDateTime.parse(time, FORMATTER).toInstant().toEpochMilli();
         } catch (DateTimeParseException e) {
-            return false;
+            return INVALID_TIME;
+        }
+    }
+
+    /**
+     * Parses yyyy-MM-ddTHH:mm:ss.SSSZ without allocating. Returns INVALID_TIME for anything
+     * else, also for times the formatter would still accept or adjust, so that those are left
+     * to the formatter and parse exactly as they always have.
+     */
+    private static long parseUtc(String time) {
+        if (time.length() != ISO_LENGTH || time.charAt(4) != '-' || time.charAt(7) != '-'
+                || time.charAt(10) != 'T' || time.charAt(13) != ':' || time.charAt(16) != ':'
+                || time.charAt(19) != '.' || time.charAt(23) != 'Z') {
+            return INVALID_TIME;
+        }
+        int year = readDigits(time, 0, 4);
+        int month = readDigits(time, 5, 2);
+        int day = readDigits(time, 8, 2);
+        int hour = readDigits(time, 11, 2);
+        int minute = readDigits(time, 14, 2);
+        int second = readDigits(time, 17, 2);
+        int millis = readDigits(time, 20, 3);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || millis < 0) {
+            return INVALID_TIME;
+        }
+        return epochDay(year, month, day) * MILLIS_PER_DAY + hour * 3_600_000L + minute * 60_000L
+                + second * 1000L + millis;
+    }
+
+    /**
+     * Days since 1970-01-01 of a civil date, the inverse of the conversion in formatEpoch.
+     */
+    private static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static int readDigits(String text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int writeDigits(byte[] buffer, int offset, int value, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
         }
+        return offset + count;
     }
-}
\ No newline at end of file
+}
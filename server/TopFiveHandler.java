@@ -1,20 +1,10 @@
 package com.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
-import java.sql.SQLException;
-import java.util.stream.Collectors;
-
-import org.json.JSONArray;
 
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
 
-public class TopFiveHandler implements HttpHandler {
+public class TopFiveHandler extends BaseHandler {
 
     private final TopFiveLocations topFiveLocations;
 
@@ -29,7 +19,7 @@ public class TopFiveHandler implements HttpHandler {
      * @param exchange the HttpExchange object representing the HTTP request and response
      */
     @Override
-    public synchronized void handle(HttpExchange exchange) {
+    public void handle(HttpExchange exchange) {
         try {
             if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
                 handleGetRequest(exchange);
@@ -43,71 +33,29 @@ public class TopFiveHandler implements HttpHandler {
 
     /**
      * Handles the GET request by retrieving the top five locations from the server and sending the response.
+     * With the query parameter window=true the locations are ranked by the visits of the configured time window.
      *
      * @param exchange the HttpExchange object representing the request.
      * @throws IOException if an I/O error occurs while handling the request.
      */
-    private synchronized void handleGetRequest(HttpExchange exchange) throws IOException {
-            try {
-            JSONArray topFiveMessage = topFiveLocations.getMessages();
-            if (topFiveMessage.isEmpty()) {
-                sendResponse(exchange, 204, -1);
-            } else {
-                byte[] responseBytes = topFiveMessage.toString().getBytes(StandardCharsets.UTF_8);
-                sendResponse(exchange, 200, new String(responseBytes));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            sendResponse(exchange, 500, "Database error");
-        };
-
-    
-     /**
-     * Reads the request body from the HttpExchange object.
-     *
-     * @param exchange the HttpExchange object as request.
-     * @return the request body as a string.
-     * @throws IOException if an I/O error occurs while reading the request body.
-     */
-    }
-    private synchronized String requestBody(HttpExchange exchange) throws IOException {
-        InputStream stream = exchange.getRequestBody();
-        String requestBody = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))
-                .lines().collect(Collectors.joining("\n"));
-        stream.close();
-        return requestBody;
-    }
+    private void handleGetRequest(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        boolean windowed = "window=true".equals(query);
+        if (query != null && !query.isEmpty() && !windowed) {
+            sendResponse(exchange, 400, "Unknown query parameter");
+            return;
+        }
+        if (windowed && !topFiveLocations.isWindowEnabled()) {
+            sendResponse(exchange, 400, "Window ranking is not enabled");
+            return;
+        }
 
-     /**
-     * Sends a response to the client with the given status code and response body.
-     *
-     * @param exchange the HttpExchange object as request.
-     * @param statusCode the status code to send in the response.
-     * @param response the response body to send in the response.
-     * @throws IOException if an I/O error occurs while sending the response.
-     */
-    private synchronized void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
-        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(statusCode, bytes.length);
-        OutputStream outputStream = exchange.getResponseBody();
-        outputStream.write(bytes);
-        outputStream.flush();
-        outputStream.close();
-    }
+        byte[] topFiveMessage = topFiveLocations.getMessages(windowed);
+        if (topFiveMessage == null) {
+            sendResponse(exchange, 204, -1);
+        } else {
+            sendResponse(exchange, 200, topFiveMessage);
+        }
 
-     /**
-     * Sends a response to the client with the given status code and response length.
-     * Overloaded method to send response without a response body.
-     *
-     * @param exchange the HttpExchange object as request.
-     * @param statusCode the status code to send in the response.
-     * @param length the response length to send in the response.
-     * @throws IOException if an I/O error occurs while sending the response.
-     */
-    private synchronized void sendResponse(HttpExchange exchange, int statusCode, int length) throws IOException {
-        exchange.sendResponseHeaders(statusCode, length);
-        OutputStream outputStream = exchange.getResponseBody();
-        outputStream.flush();
-        outputStream.close();
     }
 }
@@ -1,19 +1,23 @@
 package com.server;
 
-import java.io.IOException;
-import java.sql.SQLException;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-
 public class TopFiveLocations {
 
-    private final MessageDatabase myDatabase = MessageDatabase.getInstance();
+    private final TopVisitedIndex topVisitedIndex = MessageDatabase.getInstance().getTopVisitedIndex();
 
     public TopFiveLocations() {
     }
 
-    public JSONArray getMessages()  throws JSONException, SQLException, IOException {
-        return myDatabase.getTopFiveLocations();
+    /**
+     * Returns the most visited locations as serialized JSON.
+     *
+     * @param windowed true to rank by the visits of the configured time window instead of all time
+     * @return the UTF-8 JSON array, or null if there is nothing to rank
+     */
+    public byte[] getMessages(boolean windowed) {
+        return windowed ? topVisitedIndex.getTopInWindow() : topVisitedIndex.getTop();
+    }
+
+    public boolean isWindowEnabled() {
+        return topVisitedIndex.isWindowEnabled();
     }
 }  
@@ -0,0 +1,277 @@
+package com.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory ranking of the most visited locations for /topfive.
+ * The ranking is kept up to date one visit at a time. A change to the top K only marks
+ * their JSON stale, and it is serialized again by the next read, so a burst of visits
+ * costs one serialization and reading an unchanged ranking is a field read.
+ * Optionally visits are also counted in one minute buckets so that a ranking of the
+ * last -Dtopfive.window minutes can be served.
+ */
+public class TopVisitedIndex {
+
+    private static final Comparator<Entry> BY_VISITS = Comparator
+            .comparingLong((Entry entry) -> entry.visits).reversed()
+            .thenComparingInt(entry -> entry.locationID);
+
+    private final int size;
+    private final int windowMinutes;
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> ranking = new TreeSet<>(BY_VISITS);
+    private final ArrayDeque<Bucket> buckets = new ArrayDeque<>();
+
+    private volatile byte[] topBytes = null;
+    private volatile boolean topStale = false;
+    private byte[] windowBytes = null;
+    private long windowBytesMinute = -1;
+
+    private static final class Entry {
+        final int locationID;
+        String locationName;
+        long visits;
+
+        Entry(int locationID, String locationName, long visits) {
+            this.locationID = locationID;
+            this.locationName = locationName;
+            this.visits = visits;
+        }
+    }
+
+    private static final class Bucket {
+        final long minute;
+        final Map<Integer, Long> visits = new HashMap<>();
+
+        Bucket(long minute) {
+            this.minute = minute;
+        }
+    }
+
+    public TopVisitedIndex(int size, int windowMinutes) {
+        this.size = Math.max(1, size);
+        this.windowMinutes = Math.max(0, windowMinutes);
+    }
+
+    /**
+     * Creates the index configured with -Dtopfive.size (default 5) and -Dtopfive.window (default 0, disabled).
+     *
+     * @return the configured index
+     */
+    public static TopVisitedIndex fromConfig() {
+        return new TopVisitedIndex(ServerConfig.getInt("topfive.size", 5), ServerConfig.getInt("topfive.window", 0));
+    }
+
+    /**
+     * Adds a location with its stored visit count, used when a location is created
+     * and when the index is rebuilt from the database at startup.
+     *
+     * @param locationID the ID of the location
+     * @param locationName the name of the location
+     * @param visits the number of visits so far
+     */
+    public synchronized void add(int locationID, String locationName, long visits) {
+        Entry entry = entries.get(locationID);
+        boolean wasRanked = false;
+        if (entry != null) {
+            wasRanked = isRanked(entry);
+            ranking.remove(entry);
+            entry.locationName = locationName;
+            entry.visits = visits;
+        } else {
+            entry = new Entry(locationID, locationName, visits);
+            entries.put(locationID, entry);
+        }
+        ranking.add(entry);
+        if (wasRanked || isRanked(entry)) {
+            topStale = true;
+        }
+    }
+
+    /**
+     * Updates the name of a location after it has been edited.
+     *
+     * @param locationID the ID of the location
+     * @param locationName the new name of the location
+     */
+    public synchronized void rename(int locationID, String locationName) {
+        Entry entry = entries.get(locationID);
+        if (entry != null && !entry.locationName.equals(locationName)) {
+            entry.locationName = locationName;
+            if (isRanked(entry)) {
+                topStale = true;
+            }
+            windowBytesMinute = -1;
+        }
+    }
+
+    /**
+     * Counts one visit to a location.
+     *
+     * @param locationID the ID of the visited location
+     * @return false if the location is not known
+     */
+    public synchronized boolean visit(int locationID) {
+        Entry entry = entries.get(locationID);
+        if (entry == null) {
+            return false;
+        }
+        boolean wasRanked = isRanked(entry);
+        ranking.remove(entry);
+        entry.visits++;
+        ranking.add(entry);
+        if (wasRanked || isRanked(entry)) {
+            topStale = true;
+        }
+
+        if (windowMinutes > 0) {
+            long minute = currentMinute();
+            Bucket bucket = buckets.peekLast();
+            if (bucket == null || bucket.minute != minute) {
+                pruneBuckets(minute);
+                bucket = new Bucket(minute);
+                buckets.addLast(bucket);
+            }
+            bucket.visits.merge(locationID, 1L, Long::sum);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the location is in the index.
+     *
+     * @param locationID the ID of the location
+     * @return true if the location is known
+     */
+    public synchronized boolean contains(int locationID) {
+        return entries.containsKey(locationID);
+    }
+
+    /**
+     * Returns the serialized JSON array of the top K locations of all time, serializing it
+     * if it has changed since the last read.
+     *
+     * @return the UTF-8 JSON of the ranking, or null if there are no locations
+     */
+    public byte[] getTop() {
+        // The flag is read first: bytes read after it are at least as new as the last clearing.
+        if (!topStale) {
+            return topBytes;
+        }
+        synchronized (this) {
+            if (topStale) {
+                topBytes = serialize(ranking.iterator(), size);
+                topStale = false;
+            }
+            return topBytes;
+        }
+    }
+
+    /**
+     * Returns the serialized JSON array of the locations visited most within the window.
+     * The result is recomputed at most once a minute, or when a ranked location is renamed.
+     *
+     * @return the UTF-8 JSON of the ranking, or null if there were no visits in the window
+     * @throws IllegalStateException if the window ranking is not enabled
+     */
+    public synchronized byte[] getTopInWindow() {
+        if (windowMinutes == 0) {
+            throw new IllegalStateException("Window ranking is not enabled");
+        }
+        long minute = currentMinute();
+        if (windowBytesMinute == minute) {
+            return windowBytes;
+        }
+
+        pruneBuckets(minute);
+        Map<Integer, Long> visits = new HashMap<>();
+        for (Bucket bucket : buckets) {
+            bucket.visits.forEach((locationID, count) -> visits.merge(locationID, count, Long::sum));
+        }
+
+        TreeSet<Entry> windowRanking = new TreeSet<>(BY_VISITS);
+        for (Map.Entry<Integer, Long> visit : visits.entrySet()) {
+            Entry entry = entries.get(visit.getKey());
+            windowRanking.add(new Entry(visit.getKey(), entry == null ? "" : entry.locationName, visit.getValue()));
+            if (windowRanking.size() > size) {
+                windowRanking.pollLast();
+            }
+        }
+
+        windowBytes = serialize(windowRanking.iterator(), size);
+        windowBytesMinute = minute;
+        return windowBytes;
+    }
+
+    public boolean isWindowEnabled() {
+        return windowMinutes > 0;
+    }
+
+    /**
+     * Drops the buckets that have left the window, so that they do not pile up between
+     * reads of the window ranking.
+     */
+    private void pruneBuckets(long minute) {
+        while (!buckets.isEmpty() && buckets.peekFirst().minute <= minute - windowMinutes) {
+            buckets.pollFirst();
+        }
+    }
+
+    /**
+     * Returns true if the entry is among the top K of the ranking. Costs O(K).
+     */
+    private boolean isRanked(Entry entry) {
+        if (ranking.size() <= size) {
+            return true;
+        }
+        Iterator<Entry> iterator = ranking.iterator();
+        Entry last = null;
+        for (int i = 0; i < size; i++) {
+            last = iterator.next();
+        }
+        return BY_VISITS.compare(entry, last) <= 0;
+    }
+
+    private static byte[] serialize(Iterator<Entry> iterator, int size) {
+        List<Entry> top = new ArrayList<>(size);
+        while (iterator.hasNext() && top.size() < size) {
+            top.add(iterator.next());
+        }
+        if (top.isEmpty()) {
+            return null;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * top.size());
+        try {
+            JsonStreamWriter json = new JsonStreamWriter(buffer);
+            json.beginArray();
+            for (Entry entry : top) {
+                json.beginObject();
+                json.field("locationID", entry.locationID);
+                json.field("locationName", entry.locationName);
+                json.field("timesVisited", entry.visits);
+                json.endObject();
+            }
+            json.endArray();
+            json.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static long currentMinute() {
+        return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,30 @@
+package com.server;
+
+import org.json.JSONObject;
+
+/**
+ * A user registering to the server.
+ *
+ * @param username the username used to log in
+ * @param password the password in plain text, hashed before it is stored
+ * @param email the email address of the user
+ * @param userNickname the nickname shown as the poster of locations
+ */
+public record User(String username, String password, String email, String userNickname) {
+
+    /**
+     * Reads a user from a registration request. Fields that are missing or not strings are left null.
+     *
+     * @param json the registration request
+     * @return the user
+     */
+    public static User fromJson(JSONObject json) {
+        return new User(text(json, "username"), text(json, "password"), text(json, "email"),
+                text(json, "userNickname"));
+    }
+
+    private static String text(JSONObject json, String key) {
+        Object value = json.opt(key);
+        return value instanceof String ? (String) value : null;
+    }
+}
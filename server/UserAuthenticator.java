@@ -1,74 +1,94 @@
 package com.server;
 
 import java.sql.SQLException;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.List;
 
 import com.sun.net.httpserver.*;
 
 public class UserAuthenticator extends BasicAuthenticator {
 
     private final MessageDatabase myDatabase = MessageDatabase.getInstance();
+    private final CredentialCache credentialCache = CredentialCache.fromConfig();
+    private final UserProfileCache profileCache = UserProfileCache.fromConfig();
 
     public UserAuthenticator() {
         super("info");
+        Metrics.register("credentialCache", credentialCache::metrics);
+        Metrics.register("userProfileCache", profileCache::metrics);
     }
 
     /**
-     * Handles the authentication and registration of a user.
-     * 
-     * @param user the JSON object containing user information
-     * @return true if the user is successfully authenticated or registered, false otherwise
+     * Authenticates the request with Basic authentication. The principal of an authenticated
+     * request is a UserPrincipal carrying the nickname of the user, so handlers do not have
+     * to look it up.
+     *
+     * @param exchange the HttpExchange object as request.
+     * @return the result of the authentication
      */
+    @Override
+    public Result authenticate(HttpExchange exchange) {
+        Result result = super.authenticate(exchange);
+        if (!(result instanceof Success success)) {
+            return result;
+        }
+        String username = success.getPrincipal().getUsername();
+        String nickname = profileCache.getNickname(username);
+        if (nickname == null) {
+            // Verified from the credential cache after the profile was evicted.
+            try {
+                nickname = myDatabase.getUserNickname(username);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return new Failure(500);
+            }
+            profileCache.put(username, nickname);
+        }
+        return new Success(new UserPrincipal(username, getRealm(), nickname));
+    }
 
-    public synchronized boolean handleUser(JSONObject user) {
-        try {
-            String username = user.getString("username");
-            String password = user.getString("password");
-            String email = user.getString("email");
-            String userNickname = user.getString("userNickname");
-
-            if (username.isEmpty() || password.isEmpty()) {
-                return false;
-            } 
+    /**
+     * Handles the registration of a user.
+     * 
+     * @param user the user to register
+     * @return true if the user is successfully registered, false otherwise
+     */
+    public boolean handleUser(User user) {
+        if (!isValid(user)) {
+            return false;
+        }
 
-            boolean result = addUser(username, password, email, userNickname);
-            if (!result) {
-                return false;
-            }
-            return true;
+        return addUser(user);
+    }
 
-        } catch (JSONException e) {
-            e.printStackTrace();
+    /**
+     * Checks that a user has every field and a non-empty username and password.
+     *
+     * @param user the user to check
+     * @return true if the user can be registered
+     */
+    public boolean isValid(User user) {
+        if (user.username() == null || user.password() == null || user.email() == null
+                || user.userNickname() == null) {
             return false;
         }
+        return !user.username().isEmpty() && !user.password().isEmpty();
     }
 
 
     /**
      * Adds a new user to the database.
      *
-     * @param username the username of the user
-     * @param password the password of the user
-     * @param email the email address of the user
-     * @param userNickname the nickname of the user
+     * @param user the user to add
      * @return true if the user is successfully added, false otherwise
      */
-    public synchronized boolean addUser(String username, String password, String email, String userNickname) {
-        JSONObject userJson = new JSONObject();
-
-
-        userJson.put("username", username);
-        userJson.put("password", password);
-        userJson.put("email", email);
-        userJson.put("userNickname", userNickname);
-    
+    public boolean addUser(User user) {
         try {
-            boolean result = myDatabase.setUser(userJson);
+            boolean result = myDatabase.setUser(user);
             if (!result) {
                 return false;
             }
+            credentialCache.invalidate(user.username());
+            profileCache.put(user.username(), user.userNickname());
             return true;
 
         } catch (SQLException e) {
@@ -77,20 +97,46 @@ public class UserAuthenticator extends BasicAuthenticator {
         }
     }
 
+    /**
+     * Adds a chunk of valid users to the database in one transaction.
+     *
+     * @param users the users to add
+     * @return for every user, true if it was added and false if the username was taken
+     * @throws SQLException if the transaction fails
+     * @throws IllegalStateException if hashing a password fails
+     */
+    public boolean[] addUsers(List<User> users) throws SQLException {
+        boolean[] added = myDatabase.setUsers(users);
+        for (int i = 0; i < added.length; i++) {
+            if (added[i]) {
+                credentialCache.invalidate(users.get(i).username());
+                profileCache.put(users.get(i).username(), users.get(i).userNickname());
+            }
+        }
+        return added;
+    }
+
     /**
      * Checks the credentials of a user by authenticating the provided username and password.
+     * Recently verified credentials are answered from the cache without hashing the password again.
      * 
      * @param username the username of the user
      * @param password the password of the user
      * @return true if the credentials are valid, false otherwise
      */
-    public synchronized boolean checkCredentials(String username, String password) {
+    public boolean checkCredentials(String username, String password) {
+
+        if (credentialCache.isVerified(username, password)) {
+            return true;
+        }
 
         try {
-            boolean isValidUser = myDatabase.authenticateUser(username, password);
-            if (!isValidUser) {
+            String nickname = myDatabase.authenticateUser(username, password);
+            if (nickname == null) {
                 return false;
             }
+            credentialCache.put(username, password);
+            profileCache.put(username, nickname);
             return true;
         } catch (SQLException e) {
             e.printStackTrace();
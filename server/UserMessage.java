@@ -3,10 +3,9 @@ package com.server;
 import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 public class UserMessage {
 
@@ -16,210 +15,116 @@ public class UserMessage {
     }
 
     /**
-     * Handles the user message and performs the necessary actions based on the provided JSON data.
-     * Based on JSON data, the method will either add a new message, update an existing message, or add a visit to a location.
+     * Handles the user message and performs the necessary actions based on the parsed command.
+     * The command will either add a new message, update an existing message, or add a visit to a location.
      * 
-     * @param json The JSON object containing the message data.
-     * @param userName The username of the user sending the message.
+     * @param command The parsed location POST.
+     * @param userNickname The nickname of the user sending the message.
      * @return {@code true} if the message was successfully handled, {@code false} otherwise.
      */
-    public synchronized Boolean handleMessage(JSONObject json, String userName) {
-        try {
-            if (json.has("locationID") && json.has("locationVisitor")) {
-                int locationID = json.getInt("locationID");
-                String locationVisitor = json.getString("locationVisitor");
-    
-                return addVisit(locationID, locationVisitor);
-
-            } else if (json.has("locationID") && json.has("updatereason")) {
-                int locationID = json.getInt("locationID");
-                String updateReason = json.getString("updatereason");
-    
-                String locationName = json.getString("locationName");
-                String locationDescription = json.getString("locationDescription");
-                String locationCity = json.getString("locationCity");
-                String locationCountry = json.getString("locationCountry");
-                String locationStreetAddress = json.getString("locationStreetAddress");
-                String originalPostingTime = json.getString("originalPostingTime");
-                Double latitude = json.optDouble("latitude", 0.0);
-                Double longitude = json.optDouble("longitude", 0.0);
-    
-                if (locationName.isEmpty() || locationDescription.isEmpty() || locationCity.isEmpty()
-                        || locationCountry.isEmpty() || locationStreetAddress.isEmpty() || originalPostingTime.isEmpty()
-                        || !TimeTools.isGivenTimeValid(originalPostingTime)) {
-                    return false;
-                }
-    
-                return updateMessage(locationID, locationName, locationDescription, locationCity,
-                        locationCountry, locationStreetAddress, originalPostingTime, latitude, longitude, userName,
-                        updateReason);
-
-            } else {
-                String locationName = json.getString("locationName");
-                String locationDescription = json.getString("locationDescription");
-                String locationCity = json.getString("locationCity");
-                String locationCountry = json.getString("locationCountry");
-                String locationStreetAddress = json.getString("locationStreetAddress");
-                String originalPostingTime = json.getString("originalPostingTime");
-                Double latitude = json.optDouble("latitude", 0.0);
-                Double longitude = json.optDouble("longitude", 0.0);
-                int weather = 0;
-
-                if (json.has("weather")) {
-                    weather = 1;
-                }
-                else {
-                    weather = 0;
-                }
-    
-                if (locationName.isEmpty() || locationDescription.isEmpty() || locationCity.isEmpty()
-                        || locationCountry.isEmpty() || locationStreetAddress.isEmpty() || originalPostingTime.isEmpty()
-                        || !TimeTools.isGivenTimeValid(originalPostingTime)) {
-                    return false;
-                }
-    
-                return addMessage(locationName, locationDescription, locationCity, locationCountry,
-                        locationStreetAddress, originalPostingTime, latitude, longitude, userName, weather);
+    public Boolean handleMessage(LocationCommand command, String userNickname) {
+        if (command instanceof Visit visit) {
+            if (visit.locationVisitor() == null) {
+                return false;
             }
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return false;
-        }
-    }
+            return addVisit(visit);
 
-    /**
-     * Adds a message to the database with the specified details.
-     * 
-     * @param locationName           the name of the location
-     * @param locationDescription    the description of the location
-     * @param locationCity           the city of the location
-     * @param locationCountry        the country of the location
-     * @param locationStreetAddress  the street address of the location
-     * @param originalPostingTime    the original posting time of the message
-     * @param latitude               the latitude of the location
-     * @param longitude              the longitude of the location
-     * @param userName               the username of the user
-     * @param weather                the weather status request if true (1) or false (0)
-     * @return                       true if the message is successfully added, false otherwise
-     */
-    public synchronized Boolean addMessage(String locationName, String locationDescription, String locationCity,
-            String locationCountry, String locationStreetAddress, String originalPostingTime, double latitude,
-            double longitude, String userName, int weather) {
-        JSONObject message = new JSONObject();
-
-        long epochTimestamp = TimeTools.convertZoneTimeToEpoch(originalPostingTime);
-        String userNickName = null;
-
-        try {
-            userNickName = myDatabase.getUserNickname(userName);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
+        } else if (command instanceof LocationUpdate update) {
+            Location location = update.location();
+            if (update.updateReason() == null || !isComplete(location)
+                    || TimeTools.parseEpoch(location.originalPostingTime()) == TimeTools.INVALID_TIME) {
+                return false;
+            }
 
-        message.put("locationName", locationName);
-        message.put("locationDescription", locationDescription);
-        message.put("originalPostingTime", epochTimestamp);
-        message.put("locationCity", locationCity);
-        message.put("locationCountry", locationCountry);
-        message.put("locationStreetAddress", locationStreetAddress);
-        message.put("latitude", latitude);
-        message.put("longitude", longitude);
-        message.put("userNickname", userNickName);
-        message.put("weather", weather);
+            return updateMessage(update);
 
-        try {
-            boolean result = myDatabase.setMessage(message);
-            if (!result) {
+        } else {
+            Location location = (Location) command;
+            if (!isComplete(location)) {
+                return false;
+            }
+            long originalPostingTime = TimeTools.parseEpoch(location.originalPostingTime());
+            if (originalPostingTime == TimeTools.INVALID_TIME) {
                 return false;
             }
-            return true;
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+            return addMessage(location, originalPostingTime, userNickname);
         }
     }
 
     /**
-     * Updates the message with the specified details.
+     * Checks that every required field of a location is given and not empty.
      *
-     * @param locationID the ID of the location
-     * @param locationName the name of the location
-     * @param locationDescription the description of the location
-     * @param locationCity the city of the location
-     * @param locationCountry the country of the location
-     * @param locationStreetAddress the street address of the location
-     * @param originalPostingTime the original posting time of the message
-     * @param latitude the latitude of the location
-     * @param longitude the longitude of the location
-     * @param userName the username of the user
-     * @param updateReason the reason for the update
-     * @return true if the message was successfully updated, false otherwise
+     * @param location the location to check
+     * @return true if the location can be stored
      */
-    public synchronized Boolean updateMessage(int locationID, String locationName, String locationDescription, String locationCity,
-            String locationCountry, String locationStreetAddress, String originalPostingTime, double latitude,
-            double longitude, String userName, String updateReason) {
-        JSONObject updateMessage = new JSONObject();
+    static boolean isComplete(Location location) {
+        return !isNullOrEmpty(location.locationName()) && !isNullOrEmpty(location.locationDescription())
+                && !isNullOrEmpty(location.locationCity()) && !isNullOrEmpty(location.locationCountry())
+                && !isNullOrEmpty(location.locationStreetAddress()) && !isNullOrEmpty(location.originalPostingTime());
+    }
 
-        long updateTimeNowEpoch = TimeTools.currentTimeinEpoch();
-        String userNickName = null;
+    private static boolean isNullOrEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
 
+    /**
+     * Adds a new location to the database, posted by the given user.
+     *
+     * @param location the location to add
+     * @param originalPostingTime the posting time of the location in epoch milliseconds
+     * @param userNickname the nickname of the user
+     * @return true if the message is successfully added, false otherwise
+     */
+    public Boolean addMessage(Location location, long originalPostingTime, String userNickname) {
         try {
-            userNickName = myDatabase.getUserNickname(userName);
+            return myDatabase.setMessage(location, originalPostingTime, userNickname);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
+    }
 
-        updateMessage.put("locationID", locationID); 
-        updateMessage.put("locationName", locationName);
-        updateMessage.put("locationDescription", locationDescription);
-        updateMessage.put("locationCity", locationCity);
-        updateMessage.put("locationCountry", locationCountry);
-        updateMessage.put("locationStreetAddress", locationStreetAddress);
-        updateMessage.put("latitude", latitude);
-        updateMessage.put("longitude", longitude);
-        updateMessage.put("userNickname", userNickName);
-        updateMessage.put("updatereason", updateReason);
-        updateMessage.put("modified", updateTimeNowEpoch);
+    /**
+     * Adds a chunk of complete locations to the database in one transaction, posted by the given user.
+     *
+     * @param locations the locations to add
+     * @param originalPostingTimes the posting times of the locations in epoch milliseconds
+     * @param userNickname the nickname of the user
+     * @return the locationIDs of the added locations, in the same order
+     * @throws SQLException if the transaction fails
+     */
+    public int[] addMessages(List<Location> locations, long[] originalPostingTimes, String userNickname)
+            throws SQLException {
+        return myDatabase.setMessages(locations, originalPostingTimes, userNickname);
+    }
 
+    /**
+     * Updates the location with the contents of the update, marking it modified now.
+     *
+     * @param update the update with the ID of the location and its new contents
+     * @return true if the message was successfully updated, false otherwise
+     */
+    public Boolean updateMessage(LocationUpdate update) {
+        long updateTimeNowEpoch = TimeTools.currentTimeinEpoch();
 
         try {
-            boolean updateMessageResult = myDatabase.updateMessage(updateMessage);
-            if (!updateMessageResult) {
-                return false;
-            }
-            return true;
-
+            return myDatabase.updateMessage(update, updateTimeNowEpoch);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
-
         }
     }
 
     /**
-     * Adds a visit to the specified location based on locationID.
+     * Adds a visit to the location of the visit.
      *
-     * @param locationID the ID of the location to add the visit to
-     * @param locationVisitor the name of the visitor
+     * @param visit the visit with the locationID and the name of the visitor
      * @return true if the visit was successfully added, false otherwise
      */
-    public synchronized Boolean addVisit (int locationID, String locationVisitor) {
-
-        JSONObject visitMessage = new JSONObject();
-
-        visitMessage.put("locationID", locationID);
-        visitMessage.put("locationVisitor", locationVisitor);
-
+    public Boolean addVisit(Visit visit) {
         try {
-            boolean result = myDatabase.updateVisitation(visitMessage);
-            if (!result) {
-                return false;
-            }
-            return true;
-
+            return myDatabase.updateVisitation(visit);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -227,8 +132,20 @@ public class UserMessage {
     }
 
 
-   public synchronized JSONArray getMessages() throws JSONException, SQLException, IOException {
-       return myDatabase.getMessages();
+   public int writeMessages(MessageQuery query, JsonStreamWriter json) throws JSONException, SQLException, IOException {
+       return myDatabase.writeMessages(query, json);
+   }
+
+   public int writeNearby(NearbyQuery query, JsonStreamWriter json) throws SQLException, IOException {
+       return myDatabase.writeNearby(query.run(myDatabase.getGeoIndex()), json);
+   }
+
+   public int writeSearch(SearchQuery query, JsonStreamWriter json) throws SQLException, IOException {
+       return myDatabase.writeSearch(query, json);
+   }
+
+   public long getListingVersion() {
+       return myDatabase.getListingVersion();
    }
 
 }
@@ -0,0 +1,20 @@
+package com.server;
+
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * The authenticated user of a request, with the nickname the user's locations are posted under.
+ */
+public class UserPrincipal extends HttpPrincipal {
+
+    private final String nickname;
+
+    public UserPrincipal(String username, String realm, String nickname) {
+        super(username, realm);
+        this.nickname = nickname;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+}
@@ -0,0 +1,88 @@
+package com.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Bounded cache of the nicknames of users, filled when a user registers or logs in.
+ * A nickname never changes after registration, so entries do not expire; when the cache is
+ * full an entry is dropped to make room and is read from the database again when needed.
+ */
+public class UserProfileCache {
+
+    private final Map<String, String> nicknames = new ConcurrentHashMap<>();
+    private final int maxEntries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public UserProfileCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Creates the cache configured with -Dauth.profile.cache.size.
+     *
+     * @return the configured cache
+     */
+    public static UserProfileCache fromConfig() {
+        return new UserProfileCache(Math.max(0, ServerConfig.getInt("auth.profile.cache.size", 10000)));
+    }
+
+    /**
+     * Returns the cached nickname of a user.
+     *
+     * @param username the username of the user
+     * @return the nickname, or null if it is not cached
+     */
+    public String getNickname(String username) {
+        String nickname = nicknames.get(username);
+        if (nickname == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return nickname;
+    }
+
+    /**
+     * Remembers the nickname of a user.
+     *
+     * @param username the username of the user
+     * @param nickname the nickname of the user
+     */
+    public void put(String username, String nickname) {
+        if (maxEntries == 0 || nickname == null) {
+            return;
+        }
+        if (nicknames.size() >= maxEntries && !nicknames.containsKey(username)) {
+            Iterator<String> iterator = nicknames.keySet().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+        nicknames.put(username, nickname);
+    }
+
+    /**
+     * Returns the size and hit/miss counters of the cache.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("size", nicknames.size());
+        metrics.put("maxSize", maxEntries);
+        metrics.put("hits", hits.sum());
+        metrics.put("misses", misses.sum());
+        metrics.put("evictions", evictions.sum());
+        return metrics;
+    }
+}
@@ -0,0 +1,10 @@
+package com.server;
+
+/**
+ * A visit to a location.
+ *
+ * @param locationID the ID of the visited location
+ * @param locationVisitor the name of the visitor
+ */
+public record Visit(int locationID, String locationVisitor) implements LocationCommand {
+}
@@ -0,0 +1,145 @@
+package com.server;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Write-behind buffer for location visits. Visits are counted in memory and written to
+ * the database in one transaction every -Dvisits.flush.interval milliseconds (default 100),
+ * or as soon as -Dvisits.flush.count visits (default 10000) are pending, instead of one
+ * transaction per visit. Visits counted after the last flush are lost if the process
+ * dies without a graceful shutdown.
+ */
+public class VisitBuffer {
+
+    /**
+     * Writes a batch of visit counts to the database.
+     */
+    public interface Sink {
+        void write(Map<Integer, Long> visits) throws SQLException;
+    }
+
+    private final Sink sink;
+    private final long flushCount;
+    private final Map<Integer, LongAdder> pending = new ConcurrentHashMap<>();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedVisits = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long lastFlushNanos = 0;
+
+    public VisitBuffer(Sink sink, long flushIntervalMillis, long flushCount) {
+        this.sink = sink;
+        this.flushCount = Math.max(1, flushCount);
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "visit-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, flushIntervalMillis);
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a buffer configured with -Dvisits.flush.interval and -Dvisits.flush.count.
+     *
+     * @param sink where the visits are written
+     * @return the configured buffer
+     */
+    public static VisitBuffer fromConfig(Sink sink) {
+        return new VisitBuffer(sink, ServerConfig.getLong("visits.flush.interval", 100),
+                ServerConfig.getLong("visits.flush.count", 10000));
+    }
+
+    /**
+     * Counts one visit to a location. The visit is written with the next flush.
+     *
+     * @param locationID the ID of the visited location
+     */
+    public void add(int locationID) {
+        pending.computeIfAbsent(locationID, id -> new LongAdder()).increment();
+        if (pendingCount.incrementAndGet() == flushCount) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, close() writes the rest.
+            }
+        }
+    }
+
+    /**
+     * Writes all pending visits in one batch. Runs on the flusher thread, and once more from close().
+     * If the write fails the visits are put back and tried again with the next flush.
+     */
+    public synchronized void flush() {
+        pendingCount.set(0);
+        Map<Integer, Long> visits = new HashMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : pending.entrySet()) {
+            // sum() and add(-count) instead of sumThenReset(), which could lose concurrent increments.
+            long count = entry.getValue().sum();
+            if (count > 0) {
+                entry.getValue().add(-count);
+                visits.put(entry.getKey(), count);
+            }
+        }
+        if (visits.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            sink.write(visits);
+            flushes.increment();
+            visits.values().forEach(flushedVisits::add);
+        } catch (SQLException | RuntimeException e) {
+            failures.increment();
+            e.printStackTrace();
+            visits.forEach((locationID, count) -> pending.get(locationID).add(count));
+        }
+        lastFlushNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Stops the periodic flushing and writes the pending visits.
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Returns the buffer counters.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        long waiting = 0;
+        for (LongAdder count : pending.values()) {
+            waiting += count.sum();
+        }
+        JSONObject metrics = new JSONObject();
+        metrics.put("pending", waiting);
+        metrics.put("flushes", flushes.sum());
+        metrics.put("flushedVisits", flushedVisits.sum());
+        metrics.put("failures", failures.sum());
+        metrics.put("lastFlushMillis", TimeUnit.NANOSECONDS.toMillis(lastFlushNanos));
+        return metrics;
+    }
+}
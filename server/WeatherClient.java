@@ -1,61 +1,213 @@
 package com.server;
 
-import java.net.HttpURLConnection;
-import java.io.*;
-import java.net.URL;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.XML;
 
 public class WeatherClient {
-    
+
+    private static final ThreadLocal<XMLInputFactory> xmlInputFactory = ThreadLocal.withInitial(WeatherClient::newXmlInputFactory);
+
+    private final HttpClient httpClient;
+    private final URI weatherUri;
+
+    /**
+     * Coordinates of one location in a batch request.
+     */
+    public record Coordinates(double latitude, double longitude) {
+    }
+
     public WeatherClient() {
+        weatherUri = URI.create(ServerConfig.getString("weather.url", "http://localhost:4001/weather"));
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(20))
+                .build();
     }
 
     /**
      * Retrieves the weather information for a given latitude and longitude.
-     * 
+     *
      * @param latitude The latitude of the location.
      * @param longitude The longitude of the location.
      * @return The temperature of the weather as integer.
      * @throws IOException If an I/O error occurs while making the HTTP request.
-     * @throws JSONException If the response from the server is not in the expected JSON format.
+     * @throws JSONException If the response from the server is not in the expected format.
      */
-
     public int getWeather(double latitude, double longitude) throws IOException, JSONException {
-        URL url = new URL("http://localhost:4001/weather");
-        
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-        urlConnection.setReadTimeout(10000);
-        urlConnection.setConnectTimeout(20000);
-        urlConnection.setRequestMethod("POST");
-        urlConnection.setDoOutput(true);
-        urlConnection.setDoInput(true);
-
-        urlConnection.setRequestProperty("Content-Type", "application/xml");
+        try {
+            return getWeatherAsync(latitude, longitude).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the weather", e);
+        }
+    }
 
+    /**
+     * Retrieves the weather for a given latitude and longitude without blocking.
+     * Connections to the weather service are kept alive and reused between calls.
+     *
+     * @param latitude The latitude of the location.
+     * @param longitude The longitude of the location.
+     * @return a future completing with the temperature, or failing if the request or the response is invalid.
+     */
+    public CompletableFuture<Integer> getWeatherAsync(double latitude, double longitude) {
         String xmlMessage = "<coordinates>\n" +
                     "    <latitude>" + latitude + "</latitude>\n" +
                     "    <longitude>" + longitude + "</longitude>\n" +
                     "</coordinates>";
 
-        try (OutputStream outputStream = urlConnection.getOutputStream()) {
-            outputStream.write(xmlMessage.getBytes(StandardCharsets.UTF_8));
+        HttpRequest request = HttpRequest.newBuilder(weatherUri)
+                .timeout(Duration.ofSeconds(10))
+                .header("Content-Type", "application/xml")
+                .POST(HttpRequest.BodyPublishers.ofString(xmlMessage, StandardCharsets.UTF_8))
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new UncheckedIOException(
+                                new IOException("Weather service responded with " + response.statusCode()));
+                    }
+                    return parseTemperature(response.body());
+                });
+    }
+
+    /**
+     * Retrieves the weather for many locations with one request. The coordinates are sent as a
+     * coordinatesList, which the weather service answers with one weather element for each
+     * coordinates, in the same order.
+     *
+     * @param locations the coordinates to look up
+     * @return a future completing with the temperatures in the same order as the locations. It fails
+     *         with an UnsupportedOperationException if the weather service does not answer the list.
+     */
+    public CompletableFuture<List<Integer>> getWeatherBatch(List<Coordinates> locations) {
+        StringBuilder xmlMessage = new StringBuilder("<coordinatesList>\n");
+        for (Coordinates location : locations) {
+            xmlMessage.append("    <coordinates>\n")
+                    .append("        <latitude>").append(location.latitude()).append("</latitude>\n")
+                    .append("        <longitude>").append(location.longitude()).append("</longitude>\n")
+                    .append("    </coordinates>\n");
+        }
+        xmlMessage.append("</coordinatesList>");
+
+        HttpRequest request = HttpRequest.newBuilder(weatherUri)
+                .timeout(Duration.ofSeconds(10))
+                .header("Content-Type", "application/xml")
+                .POST(HttpRequest.BodyPublishers.ofString(xmlMessage.toString(), StandardCharsets.UTF_8))
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    if (response.statusCode() / 100 == 4 || response.statusCode() == 501) {
+                        throw new UnsupportedOperationException(
+                                "Weather service answered a batch with " + response.statusCode());
+                    }
+                    if (response.statusCode() != 200) {
+                        throw new UncheckedIOException(
+                                new IOException("Weather service responded with " + response.statusCode()));
+                    }
+                    List<Integer> temperatures;
+                    try {
+                        temperatures = parseTemperatures(response.body(), locations.size());
+                    } catch (JSONException e) {
+                        throw new UnsupportedOperationException(e.getMessage(), e);
+                    }
+                    if (temperatures.size() != locations.size()) {
+                        throw new UnsupportedOperationException("Weather service answered " + temperatures.size()
+                                + " of the " + locations.size() + " locations of a batch");
+                    }
+                    return temperatures;
+                });
+    }
+
+    /**
+     * Reads the temperature from a weather response. Only the temperature element is decoded,
+     * the rest of the document is skipped.
+     *
+     * @param xml the response body
+     * @return the temperature
+     */
+    private static int parseTemperature(byte[] xml) {
+        try {
+            XMLStreamReader reader = xmlInputFactory.get().createXMLStreamReader(new ByteArrayInputStream(xml));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && reader.getLocalName().equals("temperature")) {
+                        return (int) Double.parseDouble(reader.getElementText().trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new JSONException("Invalid weather response: " + e.getMessage());
         }
+        throw new JSONException("Weather response has no temperature");
+    }
 
-        StringBuilder responseBuilder = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(), StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                responseBuilder.append(line);
+    /**
+     * Reads the temperatures of a batch response in document order, at most max of them.
+     *
+     * @param xml the response body
+     * @param max the number of locations in the batch
+     * @return the temperatures
+     */
+    private static List<Integer> parseTemperatures(byte[] xml, int max) {
+        List<Integer> temperatures = new ArrayList<>(max);
+        try {
+            XMLStreamReader reader = xmlInputFactory.get().createXMLStreamReader(new ByteArrayInputStream(xml));
+            try {
+                while (reader.hasNext() && temperatures.size() <= max) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && reader.getLocalName().equals("temperature")) {
+                        temperatures.add((int) Double.parseDouble(reader.getElementText().trim()));
+                    }
+                }
+            } finally {
+                reader.close();
             }
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new JSONException("Invalid weather response: " + e.getMessage());
         }
+        return temperatures;
+    }
 
-        JSONObject xmlResponse = XML.toJSONObject(responseBuilder.toString());
-        int weather = xmlResponse.getJSONObject("weather").getInt("temperature");
-        
-        return weather;
+    private static XMLInputFactory newXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,255 @@
+package com.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Looks up temperatures from the weather service with at most -Dweather.parallelism
+ * requests in flight; further lookups wait in a queue without blocking the caller.
+ * Results are cached by coordinates rounded to -Dweather.cache.precision decimals
+ * (default 2, about one kilometre) for -Dweather.cache.ttl seconds. Concurrent lookups
+ * of the same coordinates share one request to the weather service.
+ * Lookups that have queued up while all requests are in flight, as they do for the rows of
+ * a listing, are sent together, up to -Dweather.batch (default 16) locations in one request.
+ * If the weather service does not answer a batch, the lookups go one location at a time.
+ */
+public class WeatherService {
+
+    private static WeatherService instance = null;
+
+    private final WeatherClient weatherClient = new WeatherClient();
+    private final Map<Long, Entry> cache = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final Queue<Lookup> waiting = new ConcurrentLinkedQueue<>();
+    private final double scale;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final int batchSize;
+    private volatile boolean batching;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    private static final class Entry {
+        final CompletableFuture<Integer> temperature;
+        final long expiresAt;
+
+        Entry(CompletableFuture<Integer> temperature, long expiresAt) {
+            this.temperature = temperature;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A lookup waiting for a free request to the weather service.
+     */
+    private static final class Lookup {
+        final long key;
+        final Entry entry;
+        final double latitude;
+        final double longitude;
+
+        Lookup(long key, Entry entry, double latitude, double longitude) {
+            this.key = key;
+            this.entry = entry;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    public static synchronized WeatherService getInstance() {
+        if (null == instance) {
+            instance = new WeatherService();
+        }
+        return instance;
+    }
+
+    private WeatherService() {
+        permits = new Semaphore(Math.max(1, ServerConfig.getInt("weather.parallelism", 8)));
+        scale = Math.pow(10, ServerConfig.getInt("weather.cache.precision", 2));
+        ttlNanos = TimeUnit.SECONDS.toNanos(ServerConfig.getLong("weather.cache.ttl", 600));
+        maxEntries = Math.max(1, ServerConfig.getInt("weather.cache.size", 10000));
+        batchSize = Math.max(1, ServerConfig.getInt("weather.batch", 16));
+        batching = batchSize > 1;
+        Metrics.register("weather", this::metrics);
+    }
+
+    /**
+     * Returns the temperature at the given coordinates, from the cache when possible.
+     * The returned future fails if the weather service cannot be reached.
+     *
+     * @param latitude the latitude of the location
+     * @param longitude the longitude of the location
+     * @return a future completing with the temperature
+     */
+    public CompletableFuture<Integer> getTemperature(double latitude, double longitude) {
+        long key = key(latitude, longitude);
+        long now = System.nanoTime();
+
+        Entry entry = cache.get(key);
+        if (entry != null && entry.expiresAt - now > 0) {
+            hits.increment();
+            return entry.temperature;
+        }
+
+        CompletableFuture<Integer> temperature = new CompletableFuture<>();
+        Entry created = new Entry(temperature, now + ttlNanos);
+        Entry current = entry == null ? cache.putIfAbsent(key, created)
+                : (cache.replace(key, entry, created) ? null : cache.get(key));
+        if (current != null) {
+            hits.increment();
+            return current.temperature;
+        }
+
+        misses.increment();
+        if (cache.size() > maxEntries) {
+            evict(now);
+        }
+        waiting.add(new Lookup(key, created, latitude, longitude));
+        startWaiting();
+        return temperature;
+    }
+
+    /**
+     * Records that a caller gave up waiting for a temperature.
+     */
+    public void recordTimeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * Returns the cache and lookup counters.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("cached", cache.size());
+        metrics.put("queued", waiting.size());
+        metrics.put("hits", hits.sum());
+        metrics.put("misses", misses.sum());
+        metrics.put("failures", failures.sum());
+        metrics.put("timeouts", timeouts.sum());
+        metrics.put("batches", batches.sum());
+        metrics.put("batching", batching);
+        return metrics;
+    }
+
+    /**
+     * Starts queued lookups while there are free permits, as many in one request as the batch allows.
+     */
+    private void startWaiting() {
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            List<Lookup> batch = new ArrayList<>();
+            int limit = batching ? batchSize : 1;
+            Lookup lookup;
+            while (batch.size() < limit && (lookup = waiting.poll()) != null) {
+                batch.add(lookup);
+            }
+            if (batch.isEmpty()) {
+                permits.release();
+                return;
+            }
+            if (batch.size() == 1) {
+                lookUp(batch.get(0));
+            } else {
+                lookUp(batch);
+            }
+        }
+    }
+
+    private void lookUp(Lookup lookup) {
+        weatherClient.getWeatherAsync(lookup.latitude, lookup.longitude).whenComplete((result, error) -> {
+            permits.release();
+            if (error == null) {
+                lookup.entry.temperature.complete(result);
+            } else {
+                fail(lookup.key, lookup.entry, error);
+            }
+            startWaiting();
+        });
+    }
+
+    /**
+     * Sends a batch of lookups in one request. If the weather service does not answer batches,
+     * batching is turned off and the lookups are queued again to go one at a time.
+     */
+    private void lookUp(List<Lookup> batch) {
+        List<WeatherClient.Coordinates> coordinates = new ArrayList<>(batch.size());
+        for (Lookup lookup : batch) {
+            coordinates.add(new WeatherClient.Coordinates(lookup.latitude, lookup.longitude));
+        }
+        batches.increment();
+        weatherClient.getWeatherBatch(coordinates).whenComplete((results, error) -> {
+            permits.release();
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (error == null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).entry.temperature.complete(results.get(i));
+                }
+            } else if (cause instanceof UnsupportedOperationException) {
+                if (batching) {
+                    batching = false;
+                    System.err.println(cause.getMessage() + ", looking up the weather one location at a time");
+                }
+                waiting.addAll(batch);
+            } else {
+                for (Lookup lookup : batch) {
+                    fail(lookup.key, lookup.entry, error);
+                }
+            }
+            startWaiting();
+        });
+    }
+
+    /**
+     * Fails a lookup and removes it from the cache so that the next request tries again.
+     */
+    private void fail(long key, Entry entry, Throwable e) {
+        failures.increment();
+        cache.remove(key, entry);
+        entry.temperature.completeExceptionally(e);
+    }
+
+    /**
+     * Removes expired entries, and if none had expired, the oldest of a few entries.
+     */
+    private void evict(long now) {
+        Map.Entry<Long, Entry> oldest = null;
+        boolean removed = false;
+        Iterator<Map.Entry<Long, Entry>> iterator = cache.entrySet().iterator();
+        for (int i = 0; i < 16 && iterator.hasNext(); i++) {
+            Map.Entry<Long, Entry> candidate = iterator.next();
+            if (candidate.getValue().expiresAt - now <= 0) {
+                iterator.remove();
+                removed = true;
+            } else if (oldest == null || candidate.getValue().expiresAt - oldest.getValue().expiresAt < 0) {
+                oldest = candidate;
+            }
+        }
+        if (!removed && oldest != null) {
+            cache.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    private long key(double latitude, double longitude) {
+        long roundedLatitude = Math.round(latitude * scale);
+        long roundedLongitude = Math.round(longitude * scale);
+        return (roundedLatitude << 32) ^ (roundedLongitude & 0xffffffffL);
+    }
+}
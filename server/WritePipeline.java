@@ -0,0 +1,242 @@
+package com.server;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Single writer for the database. Callers submit writes to a queue and one thread runs them
+ * on the write connection, as many as are waiting (at most -Ddb.write.batch, default 256) in
+ * one transaction, so concurrent writes share one commit instead of each waiting for its own.
+ * A write's future completes when its transaction has committed.
+ * If a write fails, the transaction is rolled back, that write fails and the others are run
+ * again in a new transaction, so one bad write never takes the rest of its batch with it.
+ */
+public class WritePipeline {
+
+    /**
+     * A write run on the writer thread inside the batch transaction. It may be run more than
+     * once if another write of its batch fails, so it must not have effects outside the database.
+     */
+    public interface Write<T> {
+        T run(PooledConnection writer) throws SQLException;
+    }
+
+    private static final class Task<T> {
+        final Write<T> write;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        T value;
+
+        Task(Write<T> write) {
+            this.write = write;
+        }
+
+        void run(PooledConnection writer) throws SQLException {
+            value = write.run(writer);
+        }
+
+        void complete() {
+            result.complete(value);
+        }
+    }
+
+    private final PooledConnection writer;
+    private final int maxBatch;
+    private final BlockingQueue<Task<?>> queue;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAccumulator maxBatchSize = new LongAccumulator(Math::max, 0);
+
+    public WritePipeline(PooledConnection writer, int maxBatch, int queueLimit) {
+        this.writer = writer;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, queueLimit));
+        thread = new Thread(this::runWriter, "database-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Creates a pipeline configured with -Ddb.write.batch (default 256) and -Ddb.write.queue (default 10000).
+     *
+     * @param writer the write connection, used only by the pipeline from now on
+     * @return the started pipeline
+     */
+    public static WritePipeline fromConfig(PooledConnection writer) {
+        return new WritePipeline(writer, ServerConfig.getInt("db.write.batch", 256),
+                ServerConfig.getInt("db.write.queue", 10000));
+    }
+
+    /**
+     * Queues a write, waiting for room if the queue is full.
+     *
+     * @param write the write to run
+     * @return a future completing with the result of the write once it is committed
+     * @throws SQLException if the pipeline is closed or the thread is interrupted while waiting
+     */
+    public <T> CompletableFuture<T> submit(Write<T> write) throws SQLException {
+        if (closed) {
+            throw new SQLException("Database is closed");
+        }
+        Task<T> task = new Task<>(write);
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while queueing a write", e);
+        }
+        return task.result;
+    }
+
+    /**
+     * Runs a write and waits until it is committed.
+     *
+     * @param write the write to run
+     * @return the result of the write
+     * @throws SQLException if the write or its commit fails
+     */
+    public <T> T execute(Write<T> write) throws SQLException {
+        try {
+            return submit(write).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a write", e);
+        }
+    }
+
+    /**
+     * Stops accepting writes, runs the queued ones and waits for the writer thread to finish.
+     */
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Writes queued after the writer thread stopped.
+        Task<?> task;
+        while ((task = queue.poll()) != null) {
+            task.result.completeExceptionally(new SQLException("Database is closed"));
+        }
+    }
+
+    /**
+     * Returns the pipeline counters.
+     *
+     * @return the metrics as a JSON object
+     */
+    public JSONObject metrics() {
+        long batchCount = batches.sum();
+        long writeCount = writes.sum();
+        JSONObject metrics = new JSONObject();
+        metrics.put("queued", queue.size());
+        metrics.put("batches", batchCount);
+        metrics.put("writes", writeCount);
+        metrics.put("averageBatchSize", batchCount == 0 ? 0 : (double) writeCount / batchCount);
+        metrics.put("maxBatchSize", maxBatchSize.get());
+        metrics.put("failures", failures.sum());
+        metrics.put("retries", retries.sum());
+        return metrics;
+    }
+
+    private void runWriter() {
+        List<Task<?>> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                Task<?> first = closed ? queue.poll() : queue.take();
+                if (first == null) {
+                    return;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                // close() wakes the thread up, the queued writes are still run.
+                continue;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            runBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void runBatch(List<Task<?>> batch) {
+        batches.increment();
+        writes.add(batch.size());
+        maxBatchSize.accumulate(batch.size());
+
+        Connection connection = writer.getConnection();
+        List<Task<?>> remaining = new ArrayList<>(batch);
+        while (!remaining.isEmpty()) {
+            Task<?> failed = null;
+            try {
+                connection.setAutoCommit(false);
+                for (Task<?> task : remaining) {
+                    failed = task;
+                    task.run(writer);
+                }
+                failed = null;
+                connection.commit();
+                for (Task<?> task : remaining) {
+                    task.complete();
+                }
+                remaining.clear();
+            } catch (SQLException | RuntimeException e) {
+                rollback(connection);
+                if (failed != null) {
+                    failures.increment();
+                    failed.result.completeExceptionally(e);
+                    remaining.remove(failed);
+                    if (!remaining.isEmpty()) {
+                        retries.increment();
+                    }
+                } else {
+                    // The commit itself failed, nothing of the batch was written.
+                    failures.add(remaining.size());
+                    for (Task<?> task : remaining) {
+                        task.result.completeExceptionally(e);
+                    }
+                    remaining.clear();
+                }
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
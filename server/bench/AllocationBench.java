@@ -0,0 +1,363 @@
+package com.server.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.server.BaseHandler;
+import com.server.JsonStreamWriter;
+import com.server.Location;
+import com.server.ServerConfig;
+import com.server.TimeTools;
+import com.server.User;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * Time and allocation per operation of the request and response code, each case against the
+ * way it was done before, without a network in between. Run with the server classes and their
+ * libraries on the class path:
+ *
+ * <pre>
+ * java -Dbench.case=body -cp ... com.server.bench.AllocationBench
+ * </pre>
+ *
+ * Allocation is read from the allocation counter of the thread, so it counts every byte the
+ * operation allocated, whether or not it became garbage. The cases:
+ * <ul>
+ * <li>body - reads and parses a registration request and sends the answer, with the pooled
+ * buffers of BaseHandler against a BufferedReader joining the lines into a String</li>
+ * <li>handoff - passes a new location from the handler to the database layer as a Location
+ * record against a JSONObject that is filled and read back by key</li>
+ * <li>rows - serializes a page of 20 listing rows with JsonStreamWriter against a JSONObject
+ * per row in a JSONArray</li>
+ * </ul>
+ * The options, all system properties:
+ * <ul>
+ * <li>bench.case - cases to run, comma separated, default all</li>
+ * <li>bench.iterations - operations measured per case, default 1000000</li>
+ * <li>bench.warmup - operations run before measuring, default 200000</li>
+ * </ul>
+ */
+public class AllocationBench {
+
+    private static final byte[] REGISTRATION = new JSONObject().put("username", "allocation")
+            .put("password", "allocation-password").put("email", "allocation@example.com")
+            .put("userNickname", "allocation").toString().getBytes(StandardCharsets.UTF_8);
+
+    private final int iterations = Math.max(1, ServerConfig.getInt("bench.iterations", 1000000));
+    private final int warmup = Math.max(0, ServerConfig.getInt("bench.warmup", 200000));
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are added here so that the work of an operation cannot be optimized away.
+    private long sink;
+
+    /**
+     * One operation of a case.
+     */
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        AllocationBench bench = new AllocationBench();
+        String cases = ServerConfig.getString("bench.case", "body,handoff,rows").toLowerCase(Locale.ROOT);
+        System.out.printf("%-24s %12s %12s%n", "operation", "ns/op", "bytes/op");
+        for (String name : cases.split(",")) {
+            switch (name.trim()) {
+                case "body":
+                    bench.body();
+                    break;
+                case "handoff":
+                    bench.handoff();
+                    break;
+                case "rows":
+                    bench.rows();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown bench.case " + name);
+            }
+        }
+        if (bench.sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Reading the registration body and answering it, as RegistrationHandler did before
+     * BaseHandler and as it does now.
+     */
+    private void body() throws Exception {
+        BodyHandler handler = new BodyHandler();
+        MemoryExchange exchange = new MemoryExchange();
+        measure("body/reader", () -> handler.readerWay(exchange.reset(REGISTRATION)));
+        measure("body/pooled", () -> handler.pooledWay(exchange.reset(REGISTRATION)));
+    }
+
+    /**
+     * Handing a parsed location from UserMessage to MessageDatabase, as a JSONObject filled by
+     * key and read back by key before the records, and as a Location record now.
+     */
+    private void handoff() throws Exception {
+        String[] fields = { "Location 1", "Description of location 1", "City 1", "Country 1", "Street 1",
+            "2024-01-01T12:00:00.000Z", "nickname" };
+        measure("handoff/json", () -> {
+            JSONObject message = new JSONObject();
+            message.put("locationName", fields[0]);
+            message.put("locationDescription", fields[1]);
+            message.put("originalPostingTime", 1704110400000L);
+            message.put("locationCity", fields[2]);
+            message.put("locationCountry", fields[3]);
+            message.put("locationStreetAddress", fields[4]);
+            message.put("latitude", 60.1);
+            message.put("longitude", 24.9);
+            message.put("userNickname", fields[6]);
+            message.put("weather", false);
+            sink += message.getString("locationName").length() + message.getString("locationDescription").length()
+                    + message.getString("locationCity").length() + message.getString("locationCountry").length()
+                    + message.getString("locationStreetAddress").length() + message.getLong("originalPostingTime")
+                    + (long) message.getDouble("latitude") + (long) message.getDouble("longitude")
+                    + message.getString("userNickname").length() + (message.getBoolean("weather") ? 1 : 0);
+        });
+        measure("handoff/record", () -> {
+            Location location = new Location(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5],
+                    60.1, 24.9, false);
+            sink += location.locationName().length() + location.locationDescription().length()
+                    + location.locationCity().length() + location.locationCountry().length()
+                    + location.locationStreetAddress().length() + 1704110400000L
+                    + (long) location.latitude() + (long) location.longitude() + fields[6].length()
+                    + (location.weather() ? 1 : 0);
+        });
+    }
+
+    /**
+     * Serializing a page of the listing, with a JSONObject per row before the direct
+     * serializer and with JsonStreamWriter now.
+     */
+    private void rows() throws Exception {
+        int rows = 20;
+        CountingStream out = new CountingStream();
+        measure("rows/json", () -> {
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < rows; i++) {
+                JSONObject row = new JSONObject();
+                row.put("locationID", i);
+                row.put("locationName", "Location " + (i & 7));
+                row.put("locationDescription", "Description of location");
+                row.put("locationCity", "City");
+                row.put("locationCountry", "Country");
+                row.put("locationStreetAddress", "Street 1");
+                row.put("originalPoster", "nickname");
+                row.put("originalPostingTime", TimeTools.convertEpochToZoneTime(1704110400000L + i));
+                row.put("latitude", 60.1);
+                row.put("longitude", 24.9);
+                array.put(row);
+            }
+            out.write(array.toString().getBytes(StandardCharsets.UTF_8));
+        });
+        measure("rows/writer", () -> {
+            JsonStreamWriter json = new JsonStreamWriter(out);
+            json.beginArray();
+            for (int i = 0; i < rows; i++) {
+                json.beginObject();
+                json.field("locationID", i);
+                json.field("locationName", "Location " + (i & 7));
+                json.field("locationDescription", "Description of location");
+                json.field("locationCity", "City");
+                json.field("locationCountry", "Country");
+                json.field("locationStreetAddress", "Street 1");
+                json.field("originalPoster", "nickname");
+                json.timeField("originalPostingTime", 1704110400000L + i);
+                json.field("latitude", 60.1);
+                json.field("longitude", 24.9);
+                json.endObject();
+            }
+            json.endArray();
+            json.close();
+        });
+        sink += out.count;
+    }
+
+    private void measure(String name, Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        System.out.printf("%-24s %12.1f %12.1f%n", name, (double) nanos / iterations, (double) allocated / iterations);
+    }
+
+    /**
+     * The handler code under test. It extends BaseHandler to reach its request and response methods.
+     */
+    private static final class BodyHandler extends BaseHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) {
+            throw new UnsupportedOperationException();
+        }
+
+        void pooledWay(HttpExchange exchange) throws IOException {
+            try (RequestBody requestBody = readRequestBody(exchange)) {
+                User.fromJson(requestBody.toJson());
+            }
+            sendResponse(exchange, 200, "User registered");
+        }
+
+        /**
+         * The body reading and response writing that the handlers had before BaseHandler.
+         */
+        void readerWay(HttpExchange exchange) throws IOException {
+            InputStream stream = exchange.getRequestBody();
+            String requestBody = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))
+                    .lines().collect(Collectors.joining("\n"));
+            stream.close();
+            User.fromJson(new JSONObject(requestBody));
+
+            byte[] bytes = "User registered".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream outputStream = exchange.getResponseBody();
+            outputStream.write(bytes);
+            outputStream.flush();
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Stream that only counts the bytes written to it.
+     */
+    private static final class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Exchange that serves a request body from memory and discards the response.
+     */
+    private static final class MemoryExchange extends HttpExchange {
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private InputStream requestBody;
+        private int responseCode = -1;
+
+        MemoryExchange reset(byte[] body) {
+            requestHeaders.set("Content-Length", Integer.toString(body.length));
+            requestHeaders.set("Content-Type", "application/json");
+            requestBody = new ByteArrayInputStream(body);
+            responseCode = -1;
+            return this;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return URI.create("/registration");
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "POST";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            responseCode = rCode;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
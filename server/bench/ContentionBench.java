@@ -0,0 +1,157 @@
+package com.server.bench;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.server.JsonStreamWriter;
+import com.server.Location;
+import com.server.MessageDatabase;
+import com.server.MessageQuery;
+import com.server.ServerConfig;
+import com.server.User;
+
+/**
+ * Contention benchmark of the database layer, without HTTP and TLS in front of it. Fills a new
+ * database in a temporary directory and then, for every thread count, lets the threads read
+ * pages of the listing and post locations as fast as they can for a fixed time:
+ *
+ * <pre>
+ * java -Dbench.threads=1,2,4,8,16 -Dbench.writes=10 -cp ... com.server.bench.ContentionBench
+ * </pre>
+ *
+ * With one lock around the database the throughput stays flat as threads are added. With
+ * the pool of WAL readers the reads grow with the cores, while the writes share the one
+ * writer. The options, all system properties:
+ * <ul>
+ * <li>bench.threads - thread counts to run, default 1,2,4,8</li>
+ * <li>bench.duration - seconds measured per thread count, default 10</li>
+ * <li>bench.warmup - seconds run before the first measurement, default 5</li>
+ * <li>bench.writes - percentage of the operations that post a location, default 10</li>
+ * <li>bench.locations - locations stored before the run, default 10000</li>
+ * </ul>
+ * Options of the server, such as -Ddb.readers, are passed as usual.
+ */
+public class ContentionBench {
+
+    private static final String NICKNAME = "contention";
+
+    private final int[] threadCounts;
+    private final int durationSeconds = Math.max(1, ServerConfig.getInt("bench.duration", 10));
+    private final int warmupSeconds = Math.max(0, ServerConfig.getInt("bench.warmup", 5));
+    private final int writePercent = Math.min(100, Math.max(0, ServerConfig.getInt("bench.writes", 10)));
+    private final int locations = Math.max(1, ServerConfig.getInt("bench.locations", 10000));
+    private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+    private MessageDatabase database;
+
+    ContentionBench() {
+        String[] counts = ServerConfig.getString("bench.threads", "1,2,4,8").split(",");
+        threadCounts = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            threadCounts[i] = Math.max(1, Integer.parseInt(counts[i].trim()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ContentionBench bench = new ContentionBench();
+        LoadGenerator.useTemporaryDatabase();
+        bench.database = MessageDatabase.getInstance();
+        int exitCode = 1;
+        try {
+            bench.setUp();
+            bench.round(bench.threadCounts[bench.threadCounts.length - 1], bench.warmupSeconds, false);
+            System.out.printf("%8s %12s %12s %10s %10s %10s%n", "threads", "reads/s", "writes/s", "p50 us",
+                    "p99 us", "p99.9 us");
+            for (int threads : bench.threadCounts) {
+                bench.round(threads, bench.durationSeconds, true);
+            }
+            exitCode = bench.firstError.get() == null ? 0 : 1;
+            if (bench.firstError.get() != null) {
+                bench.firstError.get().printStackTrace();
+            }
+        } finally {
+            bench.database.close();
+        }
+        System.exit(exitCode);
+    }
+
+    private void setUp() throws Exception {
+        database.setUser(new User(NICKNAME, "contention", "contention@example.com", NICKNAME));
+        List<Location> chunk = new ArrayList<>();
+        for (int i = 0; i < locations; i++) {
+            chunk.add(location(i));
+            if (chunk.size() == 1000 || i == locations - 1) {
+                long[] times = new long[chunk.size()];
+                Arrays.fill(times, System.currentTimeMillis());
+                database.setMessages(chunk, times, NICKNAME);
+                chunk.clear();
+            }
+        }
+        System.out.printf("%d locations, database %s%n", locations, System.getProperty("db.name"));
+    }
+
+    /**
+     * Runs the threads for the given time and prints their throughput and latencies if measured.
+     */
+    private void round(int threads, int seconds, boolean measured) throws InterruptedException {
+        LatencyHistogram latencies = new LatencyHistogram();
+        long[] reads = new long[threads];
+        long[] writes = new long[threads];
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.nanoTime() < end) {
+                        long start = System.nanoTime();
+                        if (random.nextInt(100) < writePercent) {
+                            database.setMessage(location(random.nextInt()), System.currentTimeMillis(), NICKNAME);
+                            writes[index]++;
+                        } else {
+                            MessageQuery page = MessageQuery.parse("limit=20&after=" + random.nextInt(locations), 100);
+                            JsonStreamWriter json = new JsonStreamWriter(OutputStream.nullOutputStream());
+                            database.writeMessages(page, json);
+                            json.close();
+                            reads[index]++;
+                        }
+                        latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    }
+                } catch (Exception e) {
+                    firstError.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }, "contention-" + t);
+            thread.start();
+        }
+        done.await();
+
+        if (measured) {
+            long readCount = 0;
+            long writeCount = 0;
+            for (int t = 0; t < threads; t++) {
+                readCount += reads[t];
+                writeCount += writes[t];
+            }
+            System.out.printf("%8d %12.0f %12.0f %10d %10d %10d%n", threads, (double) readCount / seconds,
+                    (double) writeCount / seconds, latencies.percentile(50), latencies.percentile(99),
+                    latencies.percentile(99.9));
+        }
+    }
+
+    private static Location location(int n) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new Location("Location " + n, "Contention location " + n, "City " + Math.floorMod(n, 50),
+                "Country " + Math.floorMod(n, 5), "Street " + Math.floorMod(n, 1000), null,
+                random.nextDouble(59.0, 70.0), random.nextDouble(20.0, 31.0), false);
+    }
+}
@@ -0,0 +1,113 @@
+package com.server.bench;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+import com.server.GeoIndex;
+import com.server.ServerConfig;
+
+/**
+ * Query latency of the in-memory geo index behind GET /info/nearby, without HTTP and the database
+ * in front of it. Fills an index with random locations and times the three kinds of query:
+ *
+ * <pre>
+ * java -Dbench.points=1000000 -Dgeo.cell=0.05 -cp ... com.server.bench.GeoIndexBench
+ * </pre>
+ *
+ * The options, all system properties:
+ * <ul>
+ * <li>bench.points - locations in the index, default 1000000</li>
+ * <li>bench.queries - queries measured of each kind, default 100000</li>
+ * <li>bench.area - box the locations are spread over as minLat,minLon,maxLat,maxLon,
+ * default 59,20,70,31 (about Finland)</li>
+ * <li>bench.radius - radius of the radius queries in metres, default 1000</li>
+ * <li>bench.box - side of the bounding box queries in degrees, default 0.1</li>
+ * </ul>
+ * The cell size of the index is set with -Dgeo.cell as for the server.
+ */
+public class GeoIndexBench {
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final int points = Math.max(1, ServerConfig.getInt("bench.points", 1000000));
+    private final int queries = Math.max(1, ServerConfig.getInt("bench.queries", 100000));
+    private final double radius = Double.parseDouble(ServerConfig.getString("bench.radius", "1000"));
+    private final double box = Double.parseDouble(ServerConfig.getString("bench.box", "0.1"));
+    private final double[] area = new double[4];
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    // Results are added here so that the queries cannot be optimized away.
+    private long sink;
+
+    GeoIndexBench() {
+        String[] edges = ServerConfig.getString("bench.area", "59,20,70,31").split(",");
+        for (int i = 0; i < area.length; i++) {
+            area[i] = Double.parseDouble(edges[i].trim());
+        }
+    }
+
+    /**
+     * One query of the index.
+     */
+    private interface Query {
+        List<GeoIndex.Hit> run(double latitude, double longitude);
+    }
+
+    public static void main(String[] args) {
+        GeoIndexBench bench = new GeoIndexBench();
+        GeoIndex index = GeoIndex.fromConfig();
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= bench.points; i++) {
+            index.put(i, bench.latitude(), bench.longitude());
+        }
+        System.out.printf("%d locations indexed in %.1f s%n", index.size(), (System.nanoTime() - start) / 1e9);
+
+        bench.measure("nearest k=10", (latitude, longitude) -> index.nearest(latitude, longitude, 0, 10));
+        bench.measure("nearest r=" + (long) bench.radius + "m k=100",
+                (latitude, longitude) -> index.nearest(latitude, longitude, bench.radius, 100));
+        bench.measure("box " + bench.box + " deg k=100", (latitude, longitude) -> index.within(latitude, longitude,
+                latitude + bench.box, longitude + bench.box, 100));
+        if (bench.sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Runs the query at random points of the area, first as warmup and then measured, and
+     * prints the latency percentiles in microseconds.
+     */
+    private void measure(String name, Query query) {
+        for (int i = 0; i < queries; i++) {
+            sink += query.run(latitude(), longitude()).size();
+        }
+        LatencyHistogram nanos = new LatencyHistogram();
+        long hits = 0;
+        for (int i = 0; i < queries; i++) {
+            double latitude = latitude();
+            double longitude = longitude();
+            long start = System.nanoTime();
+            List<GeoIndex.Hit> found = query.run(latitude, longitude);
+            nanos.record(System.nanoTime() - start);
+            hits += found.size();
+        }
+        sink += hits;
+
+        StringBuilder line = new StringBuilder(String.format("%-24s %8.1f hits, us:", name, (double) hits / queries));
+        for (double percentile : PERCENTILES) {
+            line.append(String.format(" p%s %.1f", percentile == (long) percentile
+                    ? Long.toString((long) percentile) : Double.toString(percentile),
+                    nanos.percentile(percentile) / 1000.0));
+        }
+        line.append(String.format(" max %.1f", nanos.max() / 1000.0));
+        System.out.println(line);
+    }
+
+    private double latitude() {
+        return area[0] + random.nextDouble() * (area[2] - area[0]);
+    }
+
+    private double longitude() {
+        return area[1] + random.nextDouble() * (area[3] - area[1]);
+    }
+}
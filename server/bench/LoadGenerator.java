@@ -0,0 +1,490 @@
+package com.server.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.server.Server;
+import com.server.ServerConfig;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * End-to-end benchmark of the server. Starts the HTTPS server in this JVM against a new
+ * SQLite database in a temporary directory and a stub weather service, registers a few users,
+ * imports a set of locations and then sends a mix of requests at a fixed arrival rate for a
+ * fixed time. Run it in the directory of keystore.jks, with the server classes and their
+ * libraries on the class path:
+ *
+ * <pre>
+ * java -Dbench.rate=500 -Dbench.duration=60 -Dbench.mix=post:20,visit:30,list:20,page:20,topfive:10 \
+ *     -cp ... com.server.bench.LoadGenerator
+ * </pre>
+ *
+ * Requests are sent on schedule whether or not the earlier ones have been answered (open
+ * loop), and each latency is measured from the time the request was due, so a server that
+ * falls behind shows it in the percentiles instead of silently lowering the rate.
+ * The options, all system properties:
+ * <ul>
+ * <li>bench.rate - requests per second, default 200</li>
+ * <li>bench.duration - seconds measured, default 30</li>
+ * <li>bench.warmup - seconds sent before measuring, default 10</li>
+ * <li>bench.mix - weights of the operations, default post:20,visit:30,update:5,list:15,page:20,topfive:10;
+ * the others are register, nearby, a search for the 10 locations nearest to a random point,
+ * and login, an authenticated request for one location, which verifies the password on every
+ * request when run with -Dauth.cache.size=0</li>
+ * <li>bench.users - users registered before the run, default 16</li>
+ * <li>bench.locations - locations imported before the run, default 1000</li>
+ * <li>bench.weather - share of the posted locations that ask for the weather, default 0.1</li>
+ * <li>bench.weather.delay - milliseconds the weather stub waits before answering, default 20</li>
+ * <li>bench.inflight - most requests waiting for an answer, further due requests are skipped, default 10000</li>
+ * <li>bench.out - file to append the results to as one JSON line, for comparing runs</li>
+ * <li>bench.label - label of the run in that file, e.g. the commit</li>
+ * </ul>
+ * Options of the server, such as -Dserver.port or -Dserver.executor, are passed as usual;
+ * -Ddb.name and -Dweather.url are set by the benchmark unless given.
+ */
+public class LoadGenerator {
+
+    /**
+     * The requests the benchmark sends.
+     */
+    enum Operation {
+        REGISTER, POST, VISIT, UPDATE, LIST, PAGE, TOPFIVE, LOGIN, NEARBY
+    }
+
+    private static final String PASSWORD = "bench";
+    // The default of -Dregistration.bulk.max.
+    private static final int BULK_REGISTRATIONS = 100;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+    private final int rate = Math.max(1, ServerConfig.getInt("bench.rate", 200));
+    private final int durationSeconds = Math.max(1, ServerConfig.getInt("bench.duration", 30));
+    private final int warmupSeconds = Math.max(0, ServerConfig.getInt("bench.warmup", 10));
+    private final String mix = ServerConfig.getString("bench.mix", "post:20,visit:30,update:5,list:15,page:20,topfive:10");
+    private final int users = Math.max(1, ServerConfig.getInt("bench.users", 16));
+    private final int locations = Math.max(1, ServerConfig.getInt("bench.locations", 1000));
+    private final double weatherShare = Double.parseDouble(ServerConfig.getString("bench.weather", "0.1"));
+    private final int maxInFlight = Math.max(1, ServerConfig.getInt("bench.inflight", 10000));
+
+    private final Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+    private final Map<Operation, Result> results = new EnumMap<>(Operation.class);
+    private final Result total = new Result();
+    private final List<Integer> locationIDs = new ArrayList<>();
+    private final AtomicInteger registrations = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+    private HttpClient client;
+    private String baseUrl;
+    private String[] authorizations;
+    private int totalWeight;
+
+    /**
+     * Latencies and outcomes of one operation.
+     */
+    private static final class Result {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final LongAdder failed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        WeatherStub weatherStub = new WeatherStub(ServerConfig.getLong("bench.weather.delay", 20));
+        int exitCode = 1;
+        try {
+            generator.startServer(weatherStub.getUrl());
+            generator.setUp();
+            generator.run();
+            generator.report();
+            exitCode = 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            weatherStub.stop();
+        }
+        // Runs the shutdown hook of the server, which closes the database.
+        System.exit(exitCode);
+    }
+
+    LoadGenerator() {
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid bench.mix entry " + entry);
+            }
+            Operation operation = Operation.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight > 0) {
+                weights.put(operation, weight);
+                totalWeight += weight;
+            }
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("bench.mix has no operations");
+        }
+        for (Operation operation : Operation.values()) {
+            results.put(operation, new Result());
+        }
+    }
+
+    /**
+     * Starts the server against a new database in a temporary directory.
+     */
+    private void startServer(String weatherUrl) throws Exception {
+        useTemporaryDatabase();
+        if (System.getProperty("weather.url") == null) {
+            System.setProperty("weather.url", weatherUrl);
+        }
+        HttpsServer server = Server.start();
+        baseUrl = "https://localhost:" + server.getAddress().getPort();
+
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .sslContext(trustServerKeystore())
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "bench-client");
+                            thread.setDaemon(true);
+                            return thread;
+                        }))
+                .build();
+    }
+
+    /**
+     * Points db.name at a new database in a temporary directory, which is deleted on exit,
+     * unless the option is given.
+     */
+    static void useTemporaryDatabase() throws IOException {
+        if (System.getProperty("db.name") == null) {
+            Path directory = Files.createTempDirectory("bench");
+            directory.toFile().deleteOnExit();
+            String database = directory.resolve("bench.db").toString();
+            for (String suffix : new String[] { "", "-wal", "-shm" }) {
+                new File(database + suffix).deleteOnExit();
+            }
+            System.setProperty("db.name", database);
+        }
+    }
+
+    /**
+     * Trusts the certificate of the keystore the server was started with.
+     */
+    static SSLContext trustServerKeystore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(ServerConfig.getString("server.keystore", "keystore.jks"))) {
+            keyStore.load(in, "perkele".toCharArray());
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(keyStore);
+        SSLContext ssl = SSLContext.getInstance("TLS");
+        ssl.init(null, tmf.getTrustManagers(), null);
+        return ssl;
+    }
+
+    /**
+     * Registers the users the requests are sent as, logs each of them in once so that their
+     * passwords are not hashed during the run, and imports the locations they visit and update.
+     */
+    private void setUp() throws Exception {
+        authorizations = new String[users];
+        for (int i = 0; i < users; i++) {
+            authorizations[i] = "Basic " + Base64.getEncoder()
+                    .encodeToString(("bench" + i + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+        }
+        // Bulk registration is only open to registered users, so the first one registers alone.
+        HttpResponse<String> first = client.send(post("/registration", null, user("bench0")),
+                HttpResponse.BodyHandlers.ofString());
+        if (first.statusCode() != 200) {
+            throw new IOException("Registering the first user failed: " + first.body());
+        }
+        StringBuilder registrationBody = new StringBuilder();
+        for (int i = 1; i < users; i++) {
+            registrationBody.append(user("bench" + i)).append('\n');
+            if (i % BULK_REGISTRATIONS == 0 || i == users - 1) {
+                HttpResponse<String> registered = client.send(request("/registration/bulk", authorizations[0])
+                        .header("Content-Type", "application/x-ndjson")
+                        .POST(HttpRequest.BodyPublishers.ofString(registrationBody.toString())).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                JSONObject result = registered.statusCode() == 200 ? new JSONObject(registered.body()) : null;
+                if (result == null || result.getInt("rejected") != 0 || result.has("error")) {
+                    throw new IOException("Registering the users failed: " + registered.body());
+                }
+                registrationBody.setLength(0);
+            }
+        }
+
+        for (String authorization : authorizations) {
+            HttpResponse<Void> login = client.send(get("/info?limit=1", authorization),
+                    HttpResponse.BodyHandlers.discarding());
+            if (login.statusCode() / 100 != 2) {
+                throw new IOException("Logging in failed with " + login.statusCode());
+            }
+        }
+
+        StringBuilder locationBody = new StringBuilder();
+        for (int i = 0; i < locations; i++) {
+            locationBody.append(location(i, false)).append('\n');
+        }
+        HttpResponse<String> imported = client.send(request("/info/bulk", authorizations[0])
+                .header("Content-Type", "application/x-ndjson")
+                .POST(HttpRequest.BodyPublishers.ofString(locationBody.toString())).build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (imported.statusCode() != 200) {
+            throw new IOException("Importing the locations failed: " + imported.body());
+        }
+        JSONArray items = new JSONObject(imported.body()).getJSONArray("results");
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            if (item.has("id")) {
+                locationIDs.add(item.getInt("id"));
+            }
+        }
+        if (locationIDs.isEmpty()) {
+            throw new IOException("No locations were imported: " + imported.body());
+        }
+        System.out.printf("Server at %s, %d users, %d locations, database %s%n", baseUrl, users,
+                locationIDs.size(), System.getProperty("db.name"));
+    }
+
+    /**
+     * Sends the requests on schedule for the warmup and the measured time, then waits for the
+     * answers still on their way.
+     */
+    private void run() throws InterruptedException {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        System.out.printf("Sending %d requests/s for %d s of warmup and %d s measured%n", rate, warmupSeconds,
+                durationSeconds);
+
+        for (long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean measured = due >= measureFrom;
+            if (inFlight.get() >= maxInFlight) {
+                if (measured) {
+                    skipped.incrementAndGet();
+                }
+                continue;
+            }
+            send(pickOperation(), due, measured);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private Operation pickOperation() {
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+            pick -= weight.getValue();
+            if (pick < 0) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private void send(Operation operation, long due, boolean measured) {
+        HttpRequest request = build(operation);
+        inFlight.incrementAndGet();
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            inFlight.decrementAndGet();
+            if (!measured) {
+                return;
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due);
+            Result result = results.get(operation);
+            result.latencies.record(micros);
+            total.latencies.record(micros);
+            if (error != null) {
+                firstError.compareAndSet(null, error);
+                result.errors.increment();
+                total.errors.increment();
+            } else if (response.statusCode() / 100 != 2) {
+                result.failed.increment();
+                total.failed.increment();
+            }
+        });
+    }
+
+    private HttpRequest build(Operation operation) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String authorization = authorizations[random.nextInt(users)];
+        int locationID = locationIDs.get(random.nextInt(locationIDs.size()));
+        switch (operation) {
+            case REGISTER:
+                return post("/registration", null, user("benchr" + registrations.incrementAndGet()));
+            case POST:
+                return post("/info", authorization, location(random.nextInt(), random.nextDouble() < weatherShare));
+            case VISIT:
+                return post("/info", authorization,
+                        new JSONObject().put("locationID", locationID).put("locationVisitor", "bench").toString());
+            case UPDATE:
+                return post("/info", authorization, new JSONObject(location(locationID, false))
+                        .put("locationID", locationID).put("updatereason", "bench").toString());
+            case LIST:
+                return get("/info", authorization);
+            case PAGE:
+                return get("/info?limit=20&after=" + locationID, authorization);
+            case TOPFIVE:
+                return get("/topfive", null);
+            case LOGIN:
+                return get("/info?limit=1", authorization);
+            case NEARBY:
+                return get(String.format(Locale.ROOT, "/info/nearby?lat=%.5f&lon=%.5f&limit=10",
+                        random.nextDouble(59.0, 70.0), random.nextDouble(20.0, 31.0)), authorization);
+            default:
+                throw new IllegalArgumentException(operation.name());
+        }
+    }
+
+    private HttpRequest.Builder request(String path, String authorization) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(Duration.ofSeconds(60));
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+        return builder;
+    }
+
+    private HttpRequest post(String path, String authorization, String body) {
+        return request(path, authorization).header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+    }
+
+    private HttpRequest get(String path, String authorization) {
+        return request(path, authorization).header("Content-Type", "application/json").GET().build();
+    }
+
+    private static String user(String username) {
+        return new JSONObject().put("username", username).put("password", PASSWORD)
+                .put("email", username + "@example.com").put("userNickname", username).toString();
+    }
+
+    private static String location(int n, boolean weather) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        JSONObject location = new JSONObject()
+                .put("locationName", "Location " + n)
+                .put("locationDescription", "Benchmark location " + n)
+                .put("locationCity", "City " + Math.floorMod(n, 50))
+                .put("locationCountry", "Country " + Math.floorMod(n, 5))
+                .put("locationStreetAddress", "Street " + Math.floorMod(n, 1000))
+                .put("originalPostingTime", "2024-01-01T12:00:00.000Z")
+                .put("latitude", random.nextDouble(59.0, 70.0))
+                .put("longitude", random.nextDouble(20.0, 31.0));
+        if (weather) {
+            location.put("weather", true);
+        }
+        return location.toString();
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of every operation and appends them to
+     * the bench.out file if one is given.
+     */
+    private void report() throws IOException {
+        long count = total.latencies.count();
+        double throughput = (double) count / durationSeconds;
+        System.out.printf("%nTarget %d requests/s, completed %.1f requests/s, %d skipped%n", rate, throughput,
+                skipped.get());
+        System.out.printf("%-9s %9s %7s %7s %9s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "non2xx",
+                "errors", "mean", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+
+        JSONObject operations = new JSONObject();
+        for (Operation operation : Operation.values()) {
+            Result result = results.get(operation);
+            if (result.latencies.count() > 0) {
+                print(operation.name().toLowerCase(Locale.ROOT), result);
+                operations.put(operation.name().toLowerCase(Locale.ROOT), toJson(result));
+            }
+        }
+        print("total", total);
+        System.out.println("Latencies in milliseconds, measured from when the request was due.");
+        if (firstError.get() != null) {
+            System.out.println("First error: " + firstError.get());
+        }
+
+        String out = ServerConfig.getString("bench.out", null);
+        if (out != null) {
+            JSONObject run = new JSONObject()
+                    .put("label", ServerConfig.getString("bench.label", ""))
+                    .put("time", System.currentTimeMillis())
+                    .put("rate", rate)
+                    .put("duration", durationSeconds)
+                    .put("mix", mix)
+                    .put("throughput", throughput)
+                    .put("skipped", skipped.get())
+                    .put("operations", operations)
+                    .put("total", toJson(total));
+            try (Writer writer = new FileWriter(out, StandardCharsets.UTF_8, true)) {
+                writer.write(run.toString());
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static void print(String name, Result result) {
+        LatencyHistogram latencies = result.latencies;
+        System.out.printf(Locale.ROOT, "%-9s %9d %7d %7d %9.2f", name, latencies.count(), result.failed.sum(),
+                result.errors.sum(), latencies.mean() / 1000.0);
+        for (double percentile : PERCENTILES) {
+            System.out.printf(Locale.ROOT, " %9.2f", latencies.percentile(percentile) / 1000.0);
+        }
+        System.out.printf(Locale.ROOT, " %9.2f%n", latencies.max() / 1000.0);
+    }
+
+    private static JSONObject toJson(Result result) {
+        LatencyHistogram latencies = result.latencies;
+        JSONObject json = new JSONObject()
+                .put("count", latencies.count())
+                .put("non2xx", result.failed.sum())
+                .put("errors", result.errors.sum())
+                .put("meanMicros", Math.round(latencies.mean()))
+                .put("maxMicros", latencies.max());
+        for (double percentile : PERCENTILES) {
+            json.put("p" + (percentile == Math.rint(percentile) ? String.valueOf((long) percentile)
+                    : String.valueOf(percentile)) + "Micros", latencies.percentile(percentile));
+        }
+        return json;
+    }
+}
@@ -0,0 +1,144 @@
+package com.server.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.server.Server;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Checks edge cases of the responses against the server started in this JVM with a new
+ * database, the same way as {@link LoadGenerator}. Run it in the directory of keystore.jks:
+ *
+ * <pre>
+ * java -cp ... com.server.bench.ResponseChecks
+ * </pre>
+ *
+ * Prints each failed check and exits with 1 if any failed.
+ */
+public class ResponseChecks {
+
+    private static final String AUTHORIZATION = "Basic "
+            + Base64.getEncoder().encodeToString("checks:checks".getBytes(StandardCharsets.UTF_8));
+
+    private final List<String> failures = new ArrayList<>();
+    private HttpClient client;
+    private String baseUrl;
+
+    public static void main(String[] args) throws Exception {
+        ResponseChecks checks = new ResponseChecks();
+        int exitCode = 1;
+        try {
+            checks.startServer();
+            checks.run();
+            for (String failure : checks.failures) {
+                System.out.println("FAILED: " + failure);
+            }
+            System.out.println(checks.failures.isEmpty() ? "All checks passed" : checks.failures.size() + " checks failed");
+            exitCode = checks.failures.isEmpty() ? 0 : 1;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.exit(exitCode);
+    }
+
+    private void startServer() throws Exception {
+        LoadGenerator.useTemporaryDatabase();
+        HttpsServer server = Server.start();
+        baseUrl = "https://localhost:" + server.getAddress().getPort();
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .sslContext(LoadGenerator.trustServerKeystore())
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    private void run() throws Exception {
+        HttpResponse<String> registered = client.send(request("/registration", null)
+                .POST(HttpRequest.BodyPublishers.ofString(new JSONObject().put("username", "checks")
+                        .put("password", "checks").put("email", "checks@example.com")
+                        .put("userNickname", "checks").toString())).build(),
+                HttpResponse.BodyHandlers.ofString());
+        check(registered.statusCode() == 200, "registration answered " + registered.statusCode());
+
+        // Nothing has been posted yet: the gzip header must not have started a 200 response.
+        checkEmptyGzip("/info?city=Nowhere");
+        checkEmptyGzip("/info/changes?follow=false");
+
+        HttpResponse<String> posted = client.send(request("/info", AUTHORIZATION)
+                .POST(HttpRequest.BodyPublishers.ofString(new JSONObject()
+                        .put("locationName", "Checked").put("locationDescription", "Response checks")
+                        .put("locationCity", "Somewhere").put("locationCountry", "Finland")
+                        .put("locationStreetAddress", "Street 1")
+                        .put("originalPostingTime", "2024-01-01T12:00:00.000Z").toString())).build(),
+                HttpResponse.BodyHandlers.ofString());
+        check(posted.statusCode() / 100 == 2, "posting a location answered " + posted.statusCode());
+
+        checkEmptyGzip("/info?city=Nowhere");
+        HttpResponse<byte[]> found = gzipGet("/info?city=Somewhere");
+        check(found.statusCode() == 200, "gzip GET with a match answered " + found.statusCode());
+        check("gzip".equals(found.headers().firstValue("Content-Encoding").orElse(null)),
+                "gzip GET with a match was not compressed");
+        JSONArray locations = new JSONArray(gunzip(found.body()));
+        check(locations.length() == 1, "gzip GET with a match returned " + locations.length() + " locations");
+
+        HttpResponse<byte[]> changes = gzipGet("/info/changes?follow=false");
+        check(changes.statusCode() == 200, "gzip change feed answered " + changes.statusCode());
+        check(gunzip(changes.body()).contains("\"changeSeq\""), "gzip change feed returned no changes");
+    }
+
+    /**
+     * Checks that a gzip GET of the path answers 204 with no body and no Content-Encoding,
+     * and that the connection is still usable afterwards.
+     */
+    private void checkEmptyGzip(String path) throws Exception {
+        HttpResponse<byte[]> response = gzipGet(path);
+        check(response.statusCode() == 204, "gzip GET " + path + " answered " + response.statusCode());
+        check(response.body().length == 0, "gzip GET " + path + " sent " + response.body().length + " bytes");
+        check(response.headers().firstValue("Content-Encoding").isEmpty(),
+                "gzip GET " + path + " sent Content-Encoding with no body");
+        HttpResponse<Void> next = client.send(request("/info?limit=1", AUTHORIZATION).GET().build(),
+                HttpResponse.BodyHandlers.discarding());
+        check(next.statusCode() / 100 == 2, "request after gzip GET " + path + " answered " + next.statusCode());
+    }
+
+    private HttpResponse<byte[]> gzipGet(String path) throws Exception {
+        return client.send(request(path, AUTHORIZATION).header("Accept-Encoding", "gzip").GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private HttpRequest.Builder request(String path, String authorization) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofSeconds(30)).header("Content-Type", "application/json");
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+        return builder;
+    }
+
+    private static String gunzip(byte[] body) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void check(boolean condition, String failure) {
+        if (!condition) {
+            failures.add(failure);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.server.bench;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.server.JsonStreamWriter;
+import com.server.Location;
+import com.server.MessageDatabase;
+import com.server.SearchQuery;
+import com.server.ServerConfig;
+import com.server.User;
+
+/**
+ * Latency of the full-text search behind GET /info/search against the size of the table,
+ * without HTTP and TLS in front of it. Fills a new database in a temporary directory up to
+ * each size in turn and times the kinds of search at every size:
+ *
+ * <pre>
+ * java -Dbench.sizes=1000,10000,100000 -cp ... com.server.bench.SearchBench
+ * </pre>
+ *
+ * The texts of the locations are made of a vocabulary of 512 words, where the first words are
+ * much more common than the last ones, so a search for a common word matches a large part of
+ * the table and a rare one only a few rows. The kinds of search:
+ * <ul>
+ * <li>common - one of the ten most common words</li>
+ * <li>rare - one of the hundred least common words</li>
+ * <li>prefix - the first two letters of a word, matching an eighth of the vocabulary</li>
+ * <li>two words - two words that both have to match</li>
+ * <li>offset 100 - a common word, the sixth page of 20</li>
+ * </ul>
+ * The options, all system properties:
+ * <ul>
+ * <li>bench.sizes - locations in the table at each measurement, ascending, default 1000,10000,100000</li>
+ * <li>bench.queries - searches measured of each kind at each size, default 500</li>
+ * <li>bench.limit - page size of the searches, default 20</li>
+ * </ul>
+ */
+public class SearchBench {
+
+    private static final String NICKNAME = "search";
+    private static final String[] SYLLABLES = { "ka", "lo", "mi", "ne", "ru", "sa", "to", "vi" };
+    private static final String[] VOCABULARY = new String[SYLLABLES.length * SYLLABLES.length * SYLLABLES.length];
+
+    static {
+        int i = 0;
+        for (String first : SYLLABLES) {
+            for (String second : SYLLABLES) {
+                for (String third : SYLLABLES) {
+                    VOCABULARY[i++] = first + second + third;
+                }
+            }
+        }
+    }
+
+    private final int[] sizes;
+    private final int queries = Math.max(1, ServerConfig.getInt("bench.queries", 500));
+    private final int limit = Math.max(1, ServerConfig.getInt("bench.limit", 20));
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    private MessageDatabase database;
+    private int stored = 0;
+
+    SearchBench() {
+        String[] counts = ServerConfig.getString("bench.sizes", "1000,10000,100000").split(",");
+        sizes = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            sizes[i] = Math.max(1, Integer.parseInt(counts[i].trim()));
+        }
+    }
+
+    /**
+     * The query string of one search.
+     */
+    private interface Search {
+        String next();
+    }
+
+    public static void main(String[] args) throws Exception {
+        SearchBench bench = new SearchBench();
+        LoadGenerator.useTemporaryDatabase();
+        bench.database = MessageDatabase.getInstance();
+        try {
+            bench.database.setUser(new User(NICKNAME, "search", "search@example.com", NICKNAME));
+            System.out.printf("%8s %-12s %8s %10s %10s %10s %10s%n", "rows", "search", "hits", "p50 us", "p90 us",
+                    "p99 us", "max us");
+            for (int size : bench.sizes) {
+                bench.fill(size);
+                bench.measure(size, "common", () -> "q=" + bench.word(0, 10));
+                bench.measure(size, "rare", () -> "q=" + bench.word(VOCABULARY.length - 100, VOCABULARY.length));
+                bench.measure(size, "prefix", () -> "q=" + bench.word(0, VOCABULARY.length).substring(0, 2));
+                bench.measure(size, "two words", () -> "q=" + bench.word(0, 64) + "+" + bench.word(0, 64));
+                bench.measure(size, "offset 100", () -> "q=" + bench.word(0, 10) + "&offset=100");
+            }
+        } finally {
+            bench.database.close();
+        }
+    }
+
+    /**
+     * Stores locations until the table has the given number of rows.
+     */
+    private void fill(int size) throws Exception {
+        List<Location> chunk = new ArrayList<>();
+        while (stored < size) {
+            chunk.add(location(stored++));
+            if (chunk.size() == 1000 || stored == size) {
+                long[] times = new long[chunk.size()];
+                Arrays.fill(times, System.currentTimeMillis());
+                database.setMessages(chunk, times, NICKNAME);
+                chunk.clear();
+            }
+        }
+    }
+
+    /**
+     * Runs the searches, first a tenth of them as warmup and then measured, and prints the
+     * average hits and the latency percentiles.
+     */
+    private void measure(int size, String name, Search search) throws Exception {
+        for (int i = 0; i < Math.max(1, queries / 10); i++) {
+            run(search.next());
+        }
+        LatencyHistogram micros = new LatencyHistogram();
+        long hits = 0;
+        for (int i = 0; i < queries; i++) {
+            String query = search.next();
+            long start = System.nanoTime();
+            hits += run(query);
+            micros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+        System.out.printf("%8d %-12s %8.1f %10d %10d %10d %10d%n", size, name, (double) hits / queries,
+                micros.percentile(50), micros.percentile(90), micros.percentile(99), micros.max());
+    }
+
+    private int run(String rawQuery) throws Exception {
+        SearchQuery query = SearchQuery.parse(rawQuery + "&limit=" + limit, limit, Integer.MAX_VALUE);
+        JsonStreamWriter json = new JsonStreamWriter(OutputStream.nullOutputStream());
+        int count = database.writeSearch(query, json);
+        json.close();
+        return count;
+    }
+
+    private Location location(int n) {
+        return new Location(text(2) + " " + n, text(8), text(1), "Country " + (n % 5),
+                text(1) + " " + (n % 1000), null, 60.0, 25.0, false);
+    }
+
+    private String text(int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(word(0, VOCABULARY.length));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns a word from the given range of the vocabulary, the words early in the range
+     * more often than the late ones.
+     */
+    private String word(int from, int to) {
+        double skew = random.nextDouble();
+        return VOCABULARY[from + (int) (skew * skew * skew * (to - from))];
+    }
+}
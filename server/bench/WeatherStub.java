@@ -0,0 +1,93 @@
+package com.server.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for the weather service during a benchmark. Answers every POST to /weather with a
+ * random temperature after a fixed delay, so the benchmark does not depend on the real service
+ * and the cost of a slow weather lookup can be dialled in. A coordinatesList is answered with
+ * a weatherList of one weather for each coordinates, after the same delay.
+ */
+public class WeatherStub {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long delayMillis;
+
+    /**
+     * Starts the stub on a free port of the loopback interface.
+     *
+     * @param delayMillis the time to wait before answering, in milliseconds
+     * @throws IOException if the stub cannot be started
+     */
+    public WeatherStub(long delayMillis) throws IOException {
+        this.delayMillis = delayMillis;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/weather", this::handle);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "weather-stub");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Returns the URL to give the server as -Dweather.url.
+     *
+     * @return the URL of the stub
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/weather";
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String request;
+        try (InputStream body = exchange.getRequestBody()) {
+            request = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] response;
+        if (request.contains("<coordinatesList>")) {
+            StringBuilder list = new StringBuilder("<weatherList>");
+            for (int at = request.indexOf("<coordinates>"); at >= 0; at = request.indexOf("<coordinates>", at + 1)) {
+                list.append(weather());
+            }
+            response = list.append("</weatherList>").toString().getBytes(StandardCharsets.UTF_8);
+        } else {
+            response = weather().getBytes(StandardCharsets.UTF_8);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static String weather() {
+        int temperature = ThreadLocalRandom.current().nextInt(-20, 30);
+        return "<weather><temperature>" + temperature + "</temperature><Unit>Celcius</Unit></weather>";
+    }
+}